@@ -0,0 +1,272 @@
+package permit.perf;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+// In-memory answer to "does this plate have an active permit right now", for enforcement
+// lookups. Permits are keyed by normalized plate (upper case letters and digits only); a
+// lookup can be narrowed to one location. Each plate maps to a small array of slots that is
+// replaced, never changed, so readers go through ConcurrentHashMap.get and a scan of a few
+// primitives without taking a lock. A slot keeps times as epoch millis and the uuid as two
+// longs instead of Instant and UUID objects. The normalized plate of every indexed permit is
+// kept by uuid as well, so an update that changes the plate takes the slot off the old one.
+//
+// Call rebuild() with every unexpired permit from the repository at startup, before writes
+// are fed in; after that onSaved() and onRemoved() from the write path keep it current and
+// purgeExpired() now and then drops slots whose permit has ended.
+public class ActivePermitIndex {
+
+    public static final int ANY_LOCATION = -1;
+
+    public static final class Slot {
+        final long uuidMsb;
+        final long uuidLsb;
+        final long activeMillis;
+        final long expiryMillis;
+        final int locationId;
+        final int spaceId;
+
+        Slot(PermitRecord permit) {
+            this.uuidMsb = permit.getTransactionUuid().getMostSignificantBits();
+            this.uuidLsb = permit.getTransactionUuid().getLeastSignificantBits();
+            this.activeMillis = permit.getActiveDate().toEpochMilli();
+            this.expiryMillis = permit.getExpiryDate().toEpochMilli();
+            this.locationId = permit.getLocationId();
+            this.spaceId = permit.getSpaceId();
+        }
+
+        boolean isActive(long nowMillis) {
+            return activeMillis <= nowMillis && nowMillis < expiryMillis;
+        }
+
+        boolean isPermit(long msb, long lsb) {
+            return uuidMsb == msb && uuidLsb == lsb;
+        }
+
+        public UUID getTransactionUuid() {
+            return new UUID(uuidMsb, uuidLsb);
+        }
+
+        public int getLocationId() {
+            return locationId;
+        }
+
+        public int getSpaceId() {
+            return spaceId;
+        }
+
+        public Instant getExpiryDate() {
+            return Instant.ofEpochMilli(expiryMillis);
+        }
+    }
+
+    private static final Slot[] NONE = new Slot[0];
+
+    private volatile ConcurrentHashMap<String, Slot[]> byPlate = new ConcurrentHashMap<>();
+    // normalized plate per indexed permit
+    private volatile ConcurrentHashMap<UUID, String> plateByPermit = new ConcurrentHashMap<>();
+
+    // "abc-123 " and "ABC123" are the same plate
+    public static String normalize(String plate) {
+        int length = plate.length();
+        boolean clean = true;
+        for (int i = 0; i < length && clean; i++) {
+            char c = plate.charAt(i);
+            clean = (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+        }
+        if (clean) {
+            return plate;
+        }
+        StringBuilder out = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            char c = Character.toUpperCase(plate.charAt(i));
+            if (Character.isLetterOrDigit(c)) {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    // the first permit for the plate active at nowMillis, at locationId or ANY_LOCATION; null if none
+    public Slot findActive(String plate, int locationId, long nowMillis) {
+        Slot[] slots = byPlate.get(normalize(plate));
+        if (slots != null) {
+            for (Slot slot : slots) {
+                if (slot.isActive(nowMillis) && (locationId == ANY_LOCATION || slot.locationId == locationId)) {
+                    return slot;
+                }
+            }
+        }
+        return null;
+    }
+
+    public boolean hasActive(String plate, int locationId, long nowMillis) {
+        return findActive(plate, locationId, nowMillis) != null;
+    }
+
+    // a permit was saved or updated; permits that have already ended are not indexed
+    public void onSaved(PermitRecord permit) {
+        final Slot slot = new Slot(permit);
+        String plate = normalize(permit.getPlateNumber());
+        String previous = slot.expiryMillis <= System.currentTimeMillis()
+                ? plateByPermit.remove(permit.getTransactionUuid())
+                : plateByPermit.put(permit.getTransactionUuid(), plate);
+        if (previous != null && !previous.equals(plate)) {
+            removeSlot(previous, slot.uuidMsb, slot.uuidLsb);
+        }
+        byPlate.compute(plate, (key, slots) -> {
+            Slot[] kept = without(slots, slot.uuidMsb, slot.uuidLsb);
+            if (slot.expiryMillis <= System.currentTimeMillis()) {
+                return kept.length == 0 ? null : kept;
+            }
+            Slot[] updated = Arrays.copyOf(kept, kept.length + 1);
+            updated[kept.length] = slot;
+            return updated;
+        });
+    }
+
+    public void onRemoved(String plateNumber, UUID transactionUuid) {
+        final long msb = transactionUuid.getMostSignificantBits();
+        final long lsb = transactionUuid.getLeastSignificantBits();
+        String indexed = plateByPermit.remove(transactionUuid);
+        String plate = normalize(plateNumber);
+        removeSlot(plate, msb, lsb);
+        if (indexed != null && !indexed.equals(plate)) {
+            removeSlot(indexed, msb, lsb);
+        }
+    }
+
+    private void removeSlot(String plate, final long msb, final long lsb) {
+        byPlate.computeIfPresent(plate, (key, slots) -> {
+            Slot[] kept = without(slots, msb, lsb);
+            return kept.length == 0 ? null : kept;
+        });
+    }
+
+    private static Slot[] without(Slot[] slots, long msb, long lsb) {
+        if (slots == null) {
+            return NONE;
+        }
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i].isPermit(msb, lsb)) {
+                Slot[] kept = new Slot[slots.length - 1];
+                System.arraycopy(slots, 0, kept, 0, i);
+                System.arraycopy(slots, i + 1, kept, i, slots.length - i - 1);
+                return kept;
+            }
+        }
+        return slots;
+    }
+
+    // drops slots whose permit ended before nowMillis, returns how many were dropped
+    public int purgeExpired(final long nowMillis) {
+        int dropped = 0;
+        for (Map.Entry<String, Slot[]> entry : byPlate.entrySet()) {
+            Slot[] slots = entry.getValue();
+            int live = 0;
+            for (Slot slot : slots) {
+                if (slot.expiryMillis > nowMillis) {
+                    live++;
+                }
+            }
+            if (live == slots.length) {
+                continue;
+            }
+            dropped += slots.length - live;
+            byPlate.computeIfPresent(entry.getKey(), (plate, current) -> {
+                List<Slot> kept = new ArrayList<>(current.length);
+                for (Slot slot : current) {
+                    if (slot.expiryMillis > nowMillis) {
+                        kept.add(slot);
+                    } else {
+                        plateByPermit.remove(slot.getTransactionUuid(), plate);
+                    }
+                }
+                return kept.isEmpty() ? null : kept.toArray(NONE);
+            });
+        }
+        return dropped;
+    }
+
+    // builds a fresh index from the repository and swaps it in whole, readers never see half of it
+    public void rebuild(Iterable<PermitRecord> unexpiredPermits) {
+        ConcurrentHashMap<String, Slot[]> fresh = new ConcurrentHashMap<>();
+        ConcurrentHashMap<UUID, String> plates = new ConcurrentHashMap<>();
+        long now = System.currentTimeMillis();
+        for (PermitRecord permit : unexpiredPermits) {
+            if (permit.getExpiryDate().toEpochMilli() <= now) {
+                continue;
+            }
+            Slot slot = new Slot(permit);
+            String plate = normalize(permit.getPlateNumber());
+            fresh.merge(plate, new Slot[] { slot }, (current, added) -> {
+                Slot[] merged = Arrays.copyOf(current, current.length + 1);
+                merged[current.length] = added[0];
+                return merged;
+            });
+            plates.put(permit.getTransactionUuid(), plate);
+        }
+        plateByPermit = plates;
+        byPlate = fresh;
+    }
+
+    public int plates() {
+        return byPlate.size();
+    }
+
+    public static void main(String[] args) {
+        int permits = 1000000;
+        Instant now = Instant.now();
+        List<PermitRecord> repository = new ArrayList<>(permits);
+        for (int i = 0; i < permits; i++) {
+            // a third are still in the future, a few have already ended
+            Instant active = now.plusSeconds(i % 3 == 0 ? 600 : -600);
+            Instant expiry = now.plusSeconds(i % 97 == 0 ? -60 : 3600);
+            repository.add(new PermitRecord(UUID.randomUUID(), 2, "P" + i, i % 200, i % 500 + 1, active, expiry));
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long before = runtime.totalMemory() - runtime.freeMemory();
+        ActivePermitIndex index = new ActivePermitIndex();
+        index.rebuild(repository);
+        System.gc();
+        long after = runtime.totalMemory() - runtime.freeMemory();
+        System.out.println(index.plates() + " plates indexed, about " + (after - before) / index.plates()
+                + " bytes each");
+
+        long nowMillis = now.toEpochMilli();
+        System.out.println("P1 active anywhere: " + index.hasActive("p-1", ANY_LOCATION, nowMillis)
+                + ", at location 1: " + index.hasActive("P1", 1, nowMillis) + ", at location 2: "
+                + index.hasActive("P1", 2, nowMillis) + ", P3 (not yet active): " + index.hasActive("P3", ANY_LOCATION, nowMillis));
+        index.onRemoved("P1", repository.get(1).getTransactionUuid());
+        System.out.println("P1 after removal: " + index.hasActive("P1", ANY_LOCATION, nowMillis));
+        PermitRecord p2 = repository.get(2);
+        index.onSaved(new PermitRecord(p2.getTransactionUuid(), 2, "Q2", p2.getLocationId(), p2.getSpaceId(),
+                p2.getActiveDate(), p2.getExpiryDate()));
+        System.out.println("P2 changed to Q2: P2 " + index.hasActive("P2", ANY_LOCATION, nowMillis) + ", Q2 "
+                + index.hasActive("Q2", ANY_LOCATION, nowMillis));
+
+        // rough numbers only, use a JMH harness for numbers worth quoting
+        String[] plates = new String[4096];
+        for (int i = 0; i < plates.length; i++) {
+            plates[i] = "P" + ThreadLocalRandom.current().nextInt(permits * 2);
+        }
+        int rounds = 10000000;
+        int found = 0;
+        for (int warmup = 0; warmup < 3; warmup++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                found += index.hasActive(plates[i & 4095], ANY_LOCATION, nowMillis) ? 1 : 0;
+            }
+            System.out.println("lookup " + (System.nanoTime() - start) / rounds + " ns/op");
+        }
+        System.out.println(found + " hits, purged " + index.purgeExpired(nowMillis + 3600 * 1000L));
+    }
+}
@@ -0,0 +1,254 @@
+package permit.perf;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Per downstream client bulkhead with an AIMD concurrency limit. Calls beyond the current
+// limit are rejected at once instead of queueing behind a slow service. The limit grows by
+// about one per limit's worth of completed calls and is cut by backoffRatio on a drop: a call
+// that timed out or ran past timeoutNanos, a 5xx or 429 answer, or a rejection downstream.
+// Other failures, a 400 for a bad rate id say, say nothing about load and leave it alone.
+// Like TCP, the limit is cut at most once per round trip: drops from calls that started
+// before the last cut were caused by the load that cut already answered for.
+public class AdaptiveBulkhead {
+
+    public static class RejectedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public RejectedException(String message) {
+            super(message);
+        }
+    }
+
+    // thrown by clients for a non 2xx answer, so the bulkhead can tell overload from bad input
+    public static class StatusException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        public StatusException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    private static final Map<String, AdaptiveBulkhead> REGISTRY = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final long timeoutNanos;
+    private final ExecutorService pool;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong drops = new AtomicLong();
+    private volatile double limit;
+    // start of the round trip of the last cut, guarded by this
+    private long lastDecreaseNanos = System.nanoTime();
+
+    public AdaptiveBulkhead(String name, int initialLimit, int minLimit, int maxLimit, double backoffRatio,
+            long timeoutNanos) {
+        this.name = name;
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoffRatio = backoffRatio;
+        this.timeoutNanos = timeoutNanos;
+        // the pool never needs more threads than the limit can ever allow
+        this.pool = Executors.newFixedThreadPool(maxLimit, r -> {
+            Thread thread = new Thread(r, name + "-bulkhead");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static AdaptiveBulkhead forClient(String client) {
+        return REGISTRY.computeIfAbsent(client, name -> new AdaptiveBulkhead(name, 20, 2, 200, 0.9,
+                TimeUnit.SECONDS.toNanos(1)));
+    }
+
+    // runs on the caller's thread, semaphore style
+    public <T> T call(Callable<T> call) throws Exception {
+        acquire();
+        long start = System.nanoTime();
+        Throwable failure = null;
+        try {
+            return call.call();
+        } catch (Exception | Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            release(start, failure);
+        }
+    }
+
+    // runs on this client's own pool, so a stuck service only ties up its own threads
+    public <T> CompletableFuture<T> submit(Callable<T> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            acquire();
+        } catch (RejectedException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        pool.execute(() -> {
+            long start = System.nanoTime();
+            Throwable failure = null;
+            try {
+                result.complete(call.call());
+            } catch (Exception e) {
+                failure = e;
+                result.completeExceptionally(e);
+            } finally {
+                release(start, failure);
+            }
+        });
+        return result;
+    }
+
+    private void acquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit) {
+                rejected.incrementAndGet();
+                throw new RejectedException(name + " concurrency limit " + (int) limit + " reached");
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return;
+            }
+        }
+    }
+
+    private void release(long startNanos, Throwable failure) {
+        long now = System.nanoTime();
+        inFlight.decrementAndGet();
+        completed.incrementAndGet();
+        boolean drop = now - startNanos > timeoutNanos || isDrop(failure);
+        if (drop) {
+            drops.incrementAndGet();
+        }
+        synchronized (this) {
+            if (!drop) {
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            } else if (startNanos - lastDecreaseNanos > 0) {
+                limit = Math.max(minLimit, limit * backoffRatio);
+                lastDecreaseNanos = now;
+            }
+        }
+    }
+
+    static boolean isDrop(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TimeoutException || cause instanceof SocketTimeoutException
+                    || cause instanceof RejectedException || cause instanceof RejectedExecutionException) {
+                return true;
+            }
+            if (cause instanceof StatusException) {
+                int status = ((StatusException) cause).getStatus();
+                return status >= 500 || status == 429;
+            }
+        }
+        return false;
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getDrops() {
+        return drops.get();
+    }
+
+    public String stats() {
+        return name + " limit=" + getLimit() + " inFlight=" + getInFlight() + " rejected=" + getRejected()
+                + " completed=" + completed.get() + " drops=" + getDrops();
+    }
+
+    public static List<String> exportAll() {
+        List<String> lines = new ArrayList<>();
+        for (AdaptiveBulkhead bulkhead : REGISTRY.values()) {
+            lines.add(bulkhead.stats());
+        }
+        return lines;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        final AdaptiveBulkhead rate = forClient("rate-service");
+        final AdaptiveBulkhead topology = forClient("topology-service");
+        forClient("core-cps-service");
+
+        // topology turns slow half way through and its client's 25 ms read timeout starts
+        // firing; rate stays healthy but one call in ten is a 400 for an unknown rate id
+        final long slowFrom = System.currentTimeMillis() + 1000;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 64; t++) {
+            Thread thread = new Thread(() -> {
+                long end = System.currentTimeMillis() + 2000;
+                while (System.currentTimeMillis() < end) {
+                    try {
+                        rate.call(() -> {
+                            sleep(2);
+                            if (ThreadLocalRandom.current().nextInt(10) == 0) {
+                                throw new StatusException(400, "Invalid rate id");
+                            }
+                            return null;
+                        });
+                    } catch (Exception e) {
+                        // rejected or bad request, the caller answers 503 or 400
+                    }
+                    try {
+                        topology.call(() -> {
+                            long latency = System.currentTimeMillis() > slowFrom
+                                    ? 20 + ThreadLocalRandom.current().nextInt(30) : 2;
+                            sleep(Math.min(latency, 25));
+                            if (latency > 25) {
+                                throw new SocketTimeoutException("Read timed out");
+                            }
+                            return null;
+                        });
+                    } catch (Exception e) {
+                        // rejected or timed out
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        exportAll().forEach(System.out::println);
+    }
+
+    private static Object sleep(long millis) throws InterruptedException {
+        Thread.sleep(millis);
+        return null;
+    }
+}
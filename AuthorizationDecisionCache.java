@@ -0,0 +1,161 @@
+package permit.perf;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Caches what a token is allowed to do. The first request with a token turns its scopes and
+// permissions into two bit masks; after that an endpoint check is a mask test instead of a
+// scan of the authority collections. Entries go away when the token expires. Only call it
+// after the token signature has been verified; the id must identify that verified token.
+public class AuthorizationDecisionCache {
+
+    public enum AuthType {
+        USER, MICROSERVICE, ADMIN
+    }
+
+    public enum Permission {
+        VIEW_PERMIT_TRANSACTION, CREATE_PERMIT_TRANSACTION, VIEW_TRANSACTION_TYPE, MANAGE_PERMITS
+    }
+
+    public interface Token {
+        String getId();
+
+        long getExpiresAtMillis();
+
+        Collection<AuthType> getScopes();
+
+        Collection<String> getAuthorities();
+    }
+
+    // what an endpoint needs: the required scope or the required permission, as in
+    // PermitAuthoritiesTest where either one is enough
+    public static final class Requirement {
+        final long scopeMask;
+        final long permissionMask;
+
+        public Requirement(AuthType scope, Permission permission) {
+            this.scopeMask = scope == null ? 0 : 1L << scope.ordinal();
+            this.permissionMask = permission == null ? 0 : 1L << permission.ordinal();
+        }
+    }
+
+    static final class Grants {
+        final long scopes;
+        final long permissions;
+        final long expiresAt;
+
+        Grants(long scopes, long permissions, long expiresAt) {
+            this.scopes = scopes;
+            this.permissions = permissions;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Grants> grants = new ConcurrentHashMap<>();
+    private final int maxEntries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public AuthorizationDecisionCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public boolean isAllowed(Token token, Requirement requirement) {
+        long now = System.currentTimeMillis();
+        if (token.getExpiresAtMillis() <= now) {
+            grants.remove(token.getId());
+            return false;
+        }
+        Grants granted = grants.get(token.getId());
+        if (granted == null || granted.expiresAt <= now) {
+            misses.incrementAndGet();
+            granted = compile(token);
+            if (grants.size() >= maxEntries) {
+                purgeExpired();
+            }
+            if (grants.size() < maxEntries) {
+                grants.put(token.getId(), granted);
+            }
+        } else {
+            hits.incrementAndGet();
+        }
+        return (granted.scopes & requirement.scopeMask) != 0 || (granted.permissions & requirement.permissionMask) != 0;
+    }
+
+    static Grants compile(Token token) {
+        long scopes = 0;
+        for (AuthType scope : token.getScopes()) {
+            scopes |= 1L << scope.ordinal();
+        }
+        long permissions = 0;
+        for (String authority : token.getAuthorities()) {
+            for (Permission permission : Permission.values()) {
+                if (permission.name().equals(authority)) {
+                    permissions |= 1L << permission.ordinal();
+                }
+            }
+        }
+        return new Grants(scopes, permissions, token.getExpiresAtMillis());
+    }
+
+    // call from a scheduler as well, so tokens that are never seen again do not linger
+    public void purgeExpired() {
+        long now = System.currentTimeMillis();
+        grants.values().removeIf(g -> g.expiresAt <= now);
+    }
+
+    public void invalidate(String tokenId) {
+        grants.remove(tokenId);
+    }
+
+    public String stats() {
+        return "entries=" + grants.size() + " hits=" + hits.get() + " misses=" + misses.get();
+    }
+
+    public static void main(String[] args) {
+        AuthorizationDecisionCache cache = new AuthorizationDecisionCache(10000);
+        Requirement viewTransactionTypes = new Requirement(AuthType.MICROSERVICE, Permission.VIEW_PERMIT_TRANSACTION);
+
+        Token user = token("user-token", 60000, EnumSet.of(AuthType.USER), "VIEW_PERMIT_TRANSACTION");
+        Token service = token("service-token", 60000, EnumSet.of(AuthType.MICROSERVICE));
+        Token nobody = token("other-token", 60000, EnumSet.of(AuthType.USER), "MANAGE_PERMITS");
+        Token expired = token("old-token", -1, EnumSet.of(AuthType.MICROSERVICE));
+
+        for (int i = 0; i < 1000; i++) {
+            cache.isAllowed(user, viewTransactionTypes);
+        }
+        System.out.println("user " + cache.isAllowed(user, viewTransactionTypes) + ", microservice "
+                + cache.isAllowed(service, viewTransactionTypes) + ", other permission "
+                + cache.isAllowed(nobody, viewTransactionTypes) + ", expired " + cache.isAllowed(expired, viewTransactionTypes));
+        System.out.println(cache.stats());
+    }
+
+    private static Token token(final String id, final long ttlMillis, final Collection<AuthType> scopes,
+            final String... authorities) {
+        final long expiresAt = System.currentTimeMillis() + ttlMillis;
+        return new Token() {
+            @Override
+            public String getId() {
+                return id;
+            }
+
+            @Override
+            public long getExpiresAtMillis() {
+                return expiresAt;
+            }
+
+            @Override
+            public Collection<AuthType> getScopes() {
+                return scopes;
+            }
+
+            @Override
+            public Collection<String> getAuthorities() {
+                return Arrays.asList(authorities);
+            }
+        };
+    }
+}
@@ -0,0 +1,336 @@
+package permit.perf;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Bulk ingest of permit transaction requests. The body may be a JSON array or NDJSON,
+// it is read a character at a time and cut into top level objects, so only one object
+// is held in memory while parsing. Each object is parsed and validated on its own,
+// valid ones are saved in groups of batchSize and one result per item is reported.
+//
+// A group that fails to save is split in half and each half saved again, down to the rows
+// that fail on their own, so one bad row (a unique key hit, say) only fails itself. When both
+// halves fail the same way as the whole group the error is not down to a row (the database is
+// down, say), so every row of the group is reported with it and nothing more is tried. An
+// object longer than MAX_OBJECT_LENGTH characters is skipped and reported without being
+// buffered; a top level string, array, number or literal is reported as not an object.
+public class BulkPermitIngest<T> {
+
+    // a permit transaction request is well under 2 KB
+    static final int MAX_OBJECT_LENGTH = 64 * 1024;
+
+    public interface BatchSaver<T> {
+        // saves every item in one transaction; on failure nothing is saved
+        void saveAll(List<T> batch) throws Exception;
+    }
+
+    public static class ItemResult {
+        private final int index;
+        private final boolean saved;
+        private final String error;
+
+        ItemResult(int index, boolean saved, String error) {
+            this.index = index;
+            this.saved = saved;
+            this.error = error;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public boolean isSaved() {
+            return saved;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return index + (saved ? " saved" : " failed: " + error);
+        }
+    }
+
+    private final Function<String, T> parser;
+    // returns the error message, or null when the request is valid
+    private final Function<T, String> validator;
+    private final BatchSaver<T> saver;
+    private final int batchSize;
+
+    public BulkPermitIngest(Function<String, T> parser, Function<T, String> validator, BatchSaver<T> saver, int batchSize) {
+        this.parser = parser;
+        this.validator = validator;
+        this.saver = saver;
+        this.batchSize = batchSize;
+    }
+
+    public void ingest(InputStream body, Consumer<ItemResult> results) throws IOException {
+        Reader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        List<T> batch = new ArrayList<>(batchSize);
+        List<Integer> batchIndexes = new ArrayList<>(batchSize);
+        StringBuilder object = new StringBuilder();
+        int depth = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        // the current object went past MAX_OBJECT_LENGTH, read to its end without keeping it
+        boolean tooLarge = false;
+        // the current element is a nested array, read to its end without keeping it
+        boolean notObject = false;
+        // inside a top level string or a number / true / false / null
+        boolean topString = false;
+        boolean literal = false;
+        // the '[' of a JSON array body is only skipped before the first element
+        boolean started = false;
+        int index = 0;
+        int c;
+        while ((c = reader.read()) != -1) {
+            char ch = (char) c;
+            if (topString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (ch == '\\') {
+                    escaped = true;
+                } else if (ch == '"') {
+                    topString = false;
+                    results.accept(new ItemResult(index++, false, "request is not an object"));
+                }
+                continue;
+            }
+            if (literal) {
+                if (Character.isWhitespace(ch) || ch == ',' || ch == ']') {
+                    literal = false;
+                    results.accept(new ItemResult(index++, false, "request is not an object"));
+                }
+                continue;
+            }
+            if (depth == 0) {
+                // between elements: skip whitespace, newlines, ',' and ']'
+                if (Character.isWhitespace(ch) || ch == ',' || ch == ']') {
+                    continue;
+                }
+                if (ch == '[' && !started) {
+                    started = true;
+                    continue;
+                }
+                started = true;
+                if (ch == '{') {
+                    depth = 1;
+                    object.append(ch);
+                } else if (ch == '[') {
+                    depth = 1;
+                    notObject = true;
+                } else if (ch == '"') {
+                    topString = true;
+                } else {
+                    literal = true;
+                }
+                continue;
+            }
+            if (notObject) {
+                // same scan as below, nothing is kept
+            } else if (!tooLarge && object.length() == MAX_OBJECT_LENGTH) {
+                tooLarge = true;
+                object.setLength(0);
+            }
+            if (!tooLarge && !notObject) {
+                object.append(ch);
+            }
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (ch == '\\') {
+                    escaped = true;
+                } else if (ch == '"') {
+                    inString = false;
+                }
+            } else if (ch == '"') {
+                inString = true;
+            } else if (ch == '{' || ch == '[') {
+                depth++;
+            } else if (ch == '}' || ch == ']') {
+                depth--;
+                if (depth == 0) {
+                    if (notObject) {
+                        results.accept(new ItemResult(index++, false, "request is not an object"));
+                        notObject = false;
+                    } else if (tooLarge) {
+                        results.accept(new ItemResult(index++, false, "request longer than " + MAX_OBJECT_LENGTH + " characters"));
+                        tooLarge = false;
+                    } else {
+                        accept(index++, object.toString(), batch, batchIndexes, results);
+                    }
+                    object.setLength(0);
+                }
+            }
+        }
+        if (depth > 0 || topString) {
+            results.accept(new ItemResult(index, false, "truncated request"));
+        } else if (literal) {
+            results.accept(new ItemResult(index, false, "request is not an object"));
+        }
+        flush(batch, batchIndexes, results);
+    }
+
+    private void accept(int index, String json, List<T> batch, List<Integer> batchIndexes, Consumer<ItemResult> results) {
+        T request;
+        try {
+            request = parser.apply(json);
+        } catch (RuntimeException e) {
+            results.accept(new ItemResult(index, false, "malformed request"));
+            return;
+        }
+        String error = validator.apply(request);
+        if (error != null) {
+            results.accept(new ItemResult(index, false, error));
+            return;
+        }
+        batch.add(request);
+        batchIndexes.add(index);
+        if (batch.size() == batchSize) {
+            flush(batch, batchIndexes, results);
+        }
+    }
+
+    private void flush(List<T> batch, List<Integer> batchIndexes, Consumer<ItemResult> results) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        save(batch, batchIndexes, results);
+        batch.clear();
+        batchIndexes.clear();
+    }
+
+    // one saveAll for the group; if it fails, each half on its own until single rows are left
+    private void save(List<T> batch, List<Integer> batchIndexes, Consumer<ItemResult> results) {
+        Exception error = trySave(batch);
+        if (error == null) {
+            report(batchIndexes, null, results);
+        } else {
+            split(batch, batchIndexes, error, results);
+        }
+    }
+
+    // the group failed with error: saves both halves, and splits further only a half that
+    // fails for a reason of its own
+    private void split(List<T> batch, List<Integer> batchIndexes, Exception error, Consumer<ItemResult> results) {
+        if (batch.size() == 1) {
+            report(batchIndexes, error, results);
+            return;
+        }
+        int half = batch.size() / 2;
+        List<T> left = batch.subList(0, half);
+        List<T> right = batch.subList(half, batch.size());
+        Exception leftError = trySave(left);
+        Exception rightError = trySave(right);
+        if (sameFailure(leftError, error) && sameFailure(rightError, error)) {
+            report(batchIndexes, error, results);
+            return;
+        }
+        if (leftError == null) {
+            report(batchIndexes.subList(0, half), null, results);
+        } else {
+            split(left, batchIndexes.subList(0, half), leftError, results);
+        }
+        if (rightError == null) {
+            report(batchIndexes.subList(half, batchIndexes.size()), null, results);
+        } else {
+            split(right, batchIndexes.subList(half, batchIndexes.size()), rightError, results);
+        }
+    }
+
+    private Exception trySave(List<T> batch) {
+        try {
+            saver.saveAll(batch);
+            return null;
+        } catch (Exception e) {
+            return e;
+        }
+    }
+
+    private static boolean sameFailure(Exception a, Exception b) {
+        return a != null && a.getClass() == b.getClass()
+                && String.valueOf(a.getMessage()).equals(String.valueOf(b.getMessage()));
+    }
+
+    private static void report(List<Integer> batchIndexes, Exception error, Consumer<ItemResult> results) {
+        for (Integer index : batchIndexes) {
+            results.accept(error == null ? new ItemResult(index, true, null)
+                    : new ItemResult(index, false, "save failed: " + error.getMessage()));
+        }
+    }
+
+    private static final Pattern PLATE = Pattern.compile("\"plateNumber\"\\s*:\\s*\"([^\"]*)\"");
+    private static final Pattern SPACE = Pattern.compile("\"spaceId\"\\s*:\\s*(\\d+)");
+
+    public static void main(String[] args) throws IOException {
+        // stands in for the shared Jackson reader of PermitTransactionRequest
+        Function<String, String[]> parser = json -> {
+            Matcher plate = PLATE.matcher(json);
+            Matcher space = SPACE.matcher(json);
+            if (!plate.find() || !space.find()) {
+                throw new IllegalArgumentException(json);
+            }
+            return new String[] { plate.group(1), space.group(1) };
+        };
+        Function<String[], String> validator = request -> {
+            if (request[0].trim().isEmpty()) {
+                return "Invalid plate number";
+            }
+            return Integer.parseInt(request[1]) == 0 ? "Invalid space id" : null;
+        };
+        final int[] saveCalls = new int[1];
+        // P6 is already in the table, so any group holding it fails on the unique key
+        BatchSaver<String[]> saver = batch -> {
+            saveCalls[0]++;
+            for (String[] request : batch) {
+                if (request[0].equals("P6")) {
+                    throw new IllegalStateException("duplicate plate P6");
+                }
+            }
+        };
+        BulkPermitIngest<String[]> ingest = new BulkPermitIngest<>(parser, validator, saver, 4);
+
+        String array = "[{\"plateNumber\":\"P1\",\"spaceId\":10},{\"plateNumber\":\" \",\"spaceId\":11},"
+                + "{\"plateNumber\":\"P}3\",\"spaceId\":12},{\"plateNumber\":\"P4\",\"spaceId\":0},"
+                + "\"{\\\"plateNumber\\\":\\\"P9\\\",\\\"spaceId\\\":9}\", 42, null, [{\"plateNumber\":\"P8\"}],"
+                + "{\"plateNumber\":\"P10\",\"spaceId\":13}]";
+        ingest.ingest(new ByteArrayInputStream(array.getBytes(StandardCharsets.UTF_8)), System.out::println);
+
+        StringBuilder huge = new StringBuilder("{\"plateNumber\":\"");
+        for (int i = 0; i < MAX_OBJECT_LENGTH; i++) {
+            huge.append('X');
+        }
+        huge.append("\",\"spaceId\":3}\n");
+        String ndjson = "{\"plateNumber\":\"P5\",\"spaceId\":1}\n{\"plateNumber\":\"P6\",\"spaceId\":2}\n" + huge
+                + "{\"plateNumber\":\"P7\",\"spaceId\":4}\n{\"bad\":1}\n";
+        ingest.ingest(new ByteArrayInputStream(ndjson.getBytes(StandardCharsets.UTF_8)), System.out::println);
+        System.out.println("saveAll calls: " + saveCalls[0]);
+
+        // the database is down: every group fails the same way, whatever rows it holds
+        final int[] downCalls = new int[1];
+        BulkPermitIngest<String[]> down = new BulkPermitIngest<>(parser, validator, batch -> {
+            downCalls[0]++;
+            throw new IllegalStateException("connection refused");
+        }, 64);
+        StringBuilder many = new StringBuilder();
+        for (int i = 0; i < 64; i++) {
+            many.append("{\"plateNumber\":\"D").append(i).append("\",\"spaceId\":1}\n");
+        }
+        final int[] failed = new int[1];
+        down.ingest(new ByteArrayInputStream(many.toString().getBytes(StandardCharsets.UTF_8)), result -> failed[0]++);
+        System.out.println("database down: " + failed[0] + " failed in " + downCalls[0] + " saveAll calls");
+    }
+}
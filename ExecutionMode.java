@@ -0,0 +1,84 @@
+package permit.perf;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Switch between classic pooled threads and one virtual thread per task, chosen with
+// -Dpermit.execution.mode=platform|virtual. Virtual threads need Java 21; asking for them on
+// an older runtime fails at startup rather than quietly running on a platform pool.
+//
+// With virtual threads a downstream call must not be handed to a separate thread pool the way
+// Hystrix thread isolation does, that would bring back the pool limit. isolate() runs the call
+// on the caller's own thread through the client's AdaptiveBulkhead instead, so the limit,
+// rejections and drop metrics for a client live in one place whichever mode is used; the
+// client's connect and read timeouts take over the job of the Hystrix timeout.
+public enum ExecutionMode {
+
+    PLATFORM, VIRTUAL;
+
+    public static ExecutionMode configured() {
+        return "virtual".equalsIgnoreCase(System.getProperty("permit.execution.mode")) ? VIRTUAL : PLATFORM;
+    }
+
+    public ExecutorService newExecutor(int platformThreads) {
+        if (this == VIRTUAL) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("permit.execution.mode=virtual needs Java 21, running on "
+                        + System.getProperty("java.version"), e);
+            }
+        }
+        return Executors.newFixedThreadPool(platformThreads);
+    }
+
+    // runs the call on this thread if the client's bulkhead has room, otherwise throws
+    // AdaptiveBulkhead.RejectedException at once
+    public static <T> T isolate(String client, Callable<T> call) throws Exception {
+        return AdaptiveBulkhead.forClient(client).call(call);
+    }
+
+    public static void main(String[] args) throws Exception {
+        ExecutionMode mode = args.length > 0 ? valueOf(args[0].toUpperCase()) : configured();
+        ExecutorService executor = mode.newExecutor(200);
+        ParallelValidation.RateClient rate = (customerId, rateId, timestamp) -> call("rate-service", "rate-" + rateId);
+        ParallelValidation.TopologyClient topology = (customerId, locationId) -> call("topology-service", Boolean.TRUE);
+        ParallelValidation validation = new ParallelValidation(rate, topology, executor);
+
+        int permits = 2000;
+        long start = System.currentTimeMillis();
+        CompletableFuture<?>[] inFlight = new CompletableFuture<?>[permits];
+        for (int i = 0; i < permits; i++) {
+            inFlight[i] = validation.validateAsync(2, 7, 11, start);
+        }
+        CompletableFuture.allOf(inFlight).handle((ignored, e) -> null).join();
+        int failed = 0;
+        for (CompletableFuture<?> future : inFlight) {
+            if (future.isCompletedExceptionally()) {
+                failed++;
+            }
+        }
+        // the bulkheads start at a limit of 20 and turn the burst away rather than queue it
+        System.out.println(mode + ": " + permits + " validations in " + (System.currentTimeMillis() - start) + " ms, "
+                + (permits - failed) + " ran, " + failed + " turned away by a bulkhead");
+        AdaptiveBulkhead.exportAll().forEach(System.out::println);
+        executor.shutdown();
+    }
+
+    private static <T> T call(String client, T answer) {
+        try {
+            return isolate(client, () -> {
+                Thread.sleep(50);
+                return answer;
+            });
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
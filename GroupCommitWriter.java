@@ -0,0 +1,311 @@
+package permit.perf;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+// Group commit for permit saves. Concurrent save() calls are queued on a MicroBatcher and
+// written together as one batched insert in one transaction, so a batch pays for a single
+// commit instead of one per permit. Each caller still gets its own answer: the saved record,
+// or a DuplicateTransactionException for its (transactionUuid, customerId) only.
+//
+// When a batch fails on the unique key it is split in half and each half is retried in its
+// own transaction, down to the offending rows. A batch with no duplicates costs one commit; one
+// duplicate in a batch of n costs about 2 log2(n) more. Any other failure is the answer for the
+// rows of the transaction that hit it only; rows an earlier half already committed stay saved.
+public class GroupCommitWriter implements AutoCloseable {
+
+    public interface BatchStore {
+        // inserts every record in one transaction; on failure nothing is committed
+        void insertAll(List<PermitRecord> records) throws Exception;
+
+        // true when the failure was a unique key violation
+        boolean isDuplicate(Exception e);
+    }
+
+    public static class DuplicateTransactionException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final UUID transactionUuid;
+
+        public DuplicateTransactionException(UUID transactionUuid) {
+            super("Duplicate transaction uuid " + transactionUuid);
+            this.transactionUuid = transactionUuid;
+        }
+
+        public UUID getTransactionUuid() {
+            return transactionUuid;
+        }
+    }
+
+    // per item outcome handed back through the batcher: the saved record or this item's error
+    static final class Outcome {
+        final PermitRecord saved;
+        final Exception error;
+
+        Outcome(PermitRecord saved, Exception error) {
+            this.saved = saved;
+            this.error = error;
+        }
+    }
+
+    private final BatchStore store;
+    private final MicroBatcher<PermitRecord, Outcome> batcher;
+    private final AtomicInteger commits = new AtomicInteger();
+
+    public GroupCommitWriter(BatchStore store, int maxBatchSize, long maxDelayMillis, int queueCapacity) {
+        this.store = store;
+        // a few transactions in flight at once, each on its own pooled connection
+        this.batcher = new MicroBatcher<>("permit-group-commit", this::write, maxBatchSize, maxDelayMillis,
+                queueCapacity, 4);
+    }
+
+    public CompletableFuture<PermitRecord> save(PermitRecord record) {
+        return batcher.submit(record).thenApply(outcome -> {
+            if (outcome.error != null) {
+                throw new CompletionException(outcome.error);
+            }
+            return outcome.saved;
+        });
+    }
+
+    // blocking form for callers that used repository.save
+    public PermitRecord saveAndWait(PermitRecord record) {
+        try {
+            return save(record).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    public int getCommits() {
+        return commits.get();
+    }
+
+    private List<Outcome> write(List<PermitRecord> batch) {
+        Outcome[] outcomes = new Outcome[batch.size()];
+        // the same key twice in one batch: the first one is written, the rest are duplicates
+        Set<String> keys = new HashSet<>();
+        List<Integer> unique = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            PermitRecord record = batch.get(i);
+            if (keys.add(record.getTransactionUuid() + ":" + record.getCustomerId())) {
+                unique.add(i);
+            } else {
+                outcomes[i] = duplicate(record);
+            }
+        }
+        insert(batch, unique, outcomes);
+        List<Outcome> results = new ArrayList<>(outcomes.length);
+        for (Outcome outcome : outcomes) {
+            results.add(outcome);
+        }
+        return results;
+    }
+
+    private void insert(List<PermitRecord> batch, List<Integer> indexes, Outcome[] outcomes) {
+        if (indexes.isEmpty()) {
+            return;
+        }
+        List<PermitRecord> records = new ArrayList<>(indexes.size());
+        for (int index : indexes) {
+            records.add(batch.get(index));
+        }
+        try {
+            store.insertAll(records);
+            commits.incrementAndGet();
+            for (int index : indexes) {
+                outcomes[index] = new Outcome(batch.get(index), null);
+            }
+        } catch (Exception e) {
+            if (!store.isDuplicate(e)) {
+                for (int index : indexes) {
+                    outcomes[index] = new Outcome(null, e);
+                }
+                return;
+            }
+            if (indexes.size() == 1) {
+                outcomes[indexes.get(0)] = duplicate(records.get(0));
+                return;
+            }
+            int half = indexes.size() / 2;
+            insert(batch, indexes.subList(0, half), outcomes);
+            insert(batch, indexes.subList(half, indexes.size()), outcomes);
+        }
+    }
+
+    private static Outcome duplicate(PermitRecord record) {
+        return new Outcome(null, new DuplicateTransactionException(record.getTransactionUuid()));
+    }
+
+    // waits for everything queued to be written
+    @Override
+    public void close() {
+        batcher.close();
+    }
+
+    // BatchStore over plain JDBC, uuid stored as BINARY(16) as in UuidCodec
+    public static class JdbcBatchStore implements BatchStore {
+        static final String INSERT = "INSERT INTO permit_transaction (transaction_uuid, customer_id, plate_number, "
+                + "location_id, space_id, active_date, expiry_date) VALUES (?, ?, ?, ?, ?, ?, ?)";
+        static final String UNIQUE_VIOLATION = "23505";
+        static final int MYSQL_DUPLICATE_KEY = 1062;
+
+        private final DataSource dataSource;
+
+        public JdbcBatchStore(DataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+
+        @Override
+        public void insertAll(List<PermitRecord> records) throws SQLException {
+            try (Connection connection = dataSource.getConnection()) {
+                connection.setAutoCommit(false);
+                try (PreparedStatement insert = connection.prepareStatement(INSERT)) {
+                    for (PermitRecord record : records) {
+                        insert.setBytes(1, UuidCodec.toBytes(record.getTransactionUuid()));
+                        insert.setInt(2, record.getCustomerId());
+                        insert.setString(3, record.getPlateNumber());
+                        insert.setInt(4, record.getLocationId());
+                        insert.setInt(5, record.getSpaceId());
+                        insert.setTimestamp(6, Timestamp.from(record.getActiveDate()));
+                        insert.setTimestamp(7, Timestamp.from(record.getExpiryDate()));
+                        insert.addBatch();
+                    }
+                    insert.executeBatch();
+                    connection.commit();
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+            }
+        }
+
+        // only a unique key violation: SQLState 23505 (PostgreSQL, H2, DB2), or MySQL's 23000 with
+        // vendor code 1062. Other class 23 states, a NOT NULL or foreign key failure, are not retried
+        @Override
+        public boolean isDuplicate(Exception e) {
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof SQLException) {
+                    SQLException sql = (SQLException) cause;
+                    if (UNIQUE_VIOLATION.equals(sql.getSQLState()) || (sql instanceof SQLIntegrityConstraintViolationException
+                            && sql.getErrorCode() == MYSQL_DUPLICATE_KEY)) {
+                        return true;
+                    }
+                    if (cause instanceof BatchUpdateException && ((SQLException) cause).getNextException() != null) {
+                        return isDuplicate(((SQLException) cause).getNextException());
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        // a table with a unique key on (transaction_uuid, customer_id) and a 2 ms commit
+        final Map<String, PermitRecord> table = new HashMap<>();
+        BatchStore store = new BatchStore() {
+            @Override
+            public void insertAll(List<PermitRecord> records) throws Exception {
+                Thread.sleep(2);
+                synchronized (table) {
+                    for (PermitRecord record : records) {
+                        if (record.getPlateNumber().length() > 10) {
+                            throw new IllegalArgumentException("plate_number too long");
+                        }
+                        if (table.containsKey(record.getTransactionUuid() + ":" + record.getCustomerId())) {
+                            throw new IllegalStateException("unique key violation");
+                        }
+                    }
+                    for (PermitRecord record : records) {
+                        table.put(record.getTransactionUuid() + ":" + record.getCustomerId(), record);
+                    }
+                }
+            }
+
+            @Override
+            public boolean isDuplicate(Exception e) {
+                return e instanceof IllegalStateException;
+            }
+        };
+
+        final List<PermitRecord> records = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            records.add(new PermitRecord(UUID.randomUUID(), 2, "P" + i, 11, i % 500 + 1, Instant.now(),
+                    Instant.now().plusSeconds(3600)));
+        }
+        // every hundredth request retries an earlier permit, one has a plate the column cannot hold
+        for (int i = 100; i < records.size(); i += 100) {
+            records.set(i, records.get(i - 50));
+        }
+        records.set(1234, new PermitRecord(UUID.randomUUID(), 2, "P-MUCH-TOO-LONG", 11, 1, Instant.now(),
+                Instant.now().plusSeconds(3600)));
+
+        for (boolean grouped : new boolean[] { false, true }) {
+            table.clear();
+            final AtomicInteger duplicates = new AtomicInteger();
+            final AtomicInteger singleCommits = new AtomicInteger();
+            final AtomicInteger failed = new AtomicInteger();
+            final GroupCommitWriter writer = new GroupCommitWriter(store, 100, 1, 10000);
+            ExecutorService requestThreads = Executors.newFixedThreadPool(64);
+            long start = System.nanoTime();
+            for (final PermitRecord record : records) {
+                requestThreads.execute(() -> {
+                    try {
+                        if (grouped) {
+                            writer.saveAndWait(record);
+                        } else {
+                            synchronized (store) {
+                                // one connection, one transaction per permit
+                                store.insertAll(Collections.singletonList(record));
+                                singleCommits.incrementAndGet();
+                            }
+                        }
+                    } catch (DuplicateTransactionException e) {
+                        duplicates.incrementAndGet();
+                    } catch (Exception e) {
+                        (store.isDuplicate(e) ? duplicates : failed).incrementAndGet();
+                    }
+                });
+            }
+            requestThreads.shutdown();
+            requestThreads.awaitTermination(1, TimeUnit.MINUTES);
+            writer.close();
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            System.out.println((grouped ? "group commit: " : "commit per save: ") + table.size() + " saved, "
+                    + duplicates.get() + " duplicates, " + failed.get() + " failed, " + (grouped ? writer.getCommits() : singleCommits.get())
+                    + " commits, " + millis + " ms");
+        }
+
+        JdbcBatchStore jdbc = new JdbcBatchStore(null);
+        System.out.println("duplicate: 23505 " + jdbc.isDuplicate(new SQLException("unique", "23505"))
+                + ", MySQL 1062 " + jdbc.isDuplicate(new SQLIntegrityConstraintViolationException("Duplicate entry", "23000", 1062))
+                + ", not null 23502 " + jdbc.isDuplicate(new SQLException("not null", "23502"))
+                + ", MySQL foreign key 1452 " + jdbc.isDuplicate(new SQLIntegrityConstraintViolationException("fk", "23000", 1452)));
+    }
+}
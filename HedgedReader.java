@@ -0,0 +1,164 @@
+package permit.perf;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+// Tail latency protection for a slow read such as getPermits on the GET path.
+// Concurrent reads of the same key share one in-flight call. If that call has not answered
+// after the observed hedgePercentile latency, one more request is sent and whichever answers
+// first wins. When the caller's budget runs out, or both attempts fail, the fallback is used.
+public class HedgedReader<K, V> {
+
+    private final Function<K, V> loader;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService timer;
+    private final double hedgePercentile;
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    // a power of two, so the write index wraps with a mask
+    private final long[] samples = new long[1024];
+    private int sampleIndex;
+    private int sampleFilled;
+    private int sinceRefresh;
+    private volatile long hedgeDelayNanos;
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    public HedgedReader(Function<K, V> loader, ExecutorService executor, ScheduledExecutorService timer,
+            double hedgePercentile, long initialHedgeDelayMillis) {
+        this.loader = loader;
+        this.executor = executor;
+        this.timer = timer;
+        this.hedgePercentile = hedgePercentile;
+        this.hedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(initialHedgeDelayMillis);
+    }
+
+    public V get(K key, long budgetMillis, Supplier<V> fallback) {
+        boolean[] started = new boolean[1];
+        CompletableFuture<V> result = inFlight.computeIfAbsent(key, k -> {
+            started[0] = true;
+            return start(k);
+        });
+        if (started[0]) {
+            result.whenComplete((value, error) -> inFlight.remove(key, result));
+        } else {
+            coalesced.incrementAndGet();
+        }
+        try {
+            return result.get(budgetMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            fallbacks.incrementAndGet();
+            return fallback.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fallbacks.incrementAndGet();
+            return fallback.get();
+        } catch (Exception e) {
+            fallbacks.incrementAndGet();
+            return fallback.get();
+        }
+    }
+
+    private CompletableFuture<V> start(final K key) {
+        final CompletableFuture<V> result = new CompletableFuture<>();
+        final AtomicInteger outstanding = new AtomicInteger(1);
+        attempt(key, result, outstanding);
+        final ScheduledFuture<?> hedge = timer.schedule(() -> {
+            if (!result.isDone() && outstanding.incrementAndGet() > 1) {
+                hedges.incrementAndGet();
+                attempt(key, result, outstanding);
+            }
+        }, hedgeDelayNanos, TimeUnit.NANOSECONDS);
+        // a fast answer should not leave its hedge queued on the timer
+        result.whenComplete((value, error) -> hedge.cancel(false));
+        return result;
+    }
+
+    private void attempt(K key, CompletableFuture<V> result, AtomicInteger outstanding) {
+        calls.incrementAndGet();
+        final long start = System.nanoTime();
+        executor.execute(() -> {
+            try {
+                V value = loader.apply(key);
+                result.complete(value);
+                record(System.nanoTime() - start);
+            } catch (RuntimeException e) {
+                // the last attempt standing reports the failure
+                if (outstanding.decrementAndGet() == 0) {
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+    }
+
+    // keeps the last samples.length latencies and refreshes the hedge delay every 64 samples
+    private synchronized void record(long latencyNanos) {
+        samples[sampleIndex] = latencyNanos;
+        sampleIndex = (sampleIndex + 1) & (samples.length - 1);
+        if (sampleFilled < samples.length) {
+            sampleFilled++;
+        }
+        if (++sinceRefresh == 64) {
+            sinceRefresh = 0;
+            long[] sorted = Arrays.copyOf(samples, sampleFilled);
+            Arrays.sort(sorted);
+            hedgeDelayNanos = sorted[(int) Math.min(sorted.length - 1, Math.floor(sorted.length * hedgePercentile))];
+        }
+    }
+
+    public String stats() {
+        return "calls=" + calls.get() + " coalesced=" + coalesced.get() + " hedges=" + hedges.get() + " fallbacks="
+                + fallbacks.get() + " hedgeDelayMicros=" + TimeUnit.NANOSECONDS.toMicros(hedgeDelayNanos);
+    }
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        // cancelled hedges leave the timer's queue at once instead of when their delay is up
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1);
+        timer.setRemoveOnCancelPolicy(true);
+        // CPS answers in 5 ms, except one call in twenty that takes 300 ms
+        Function<String, String> cps = transactionUuid -> {
+            long millis = ThreadLocalRandom.current().nextInt(20) == 0 ? 300 : 5;
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "payments of " + transactionUuid;
+        };
+        HedgedReader<String, String> reader = new HedgedReader<>(cps, executor, timer, 0.9, 50);
+
+        long[] latencies = new long[2000];
+        for (int i = 0; i < latencies.length; i++) {
+            long start = System.nanoTime();
+            reader.get("txn-" + i, 250, () -> "permit without payments");
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+        System.out.println("p50 " + latencies[1000] / 1000000 + " ms, p99 " + latencies[1980] / 1000000 + " ms");
+
+        // a dashboard polling one transaction from ten threads
+        CompletableFuture<?>[] polls = new CompletableFuture<?>[10];
+        for (int i = 0; i < polls.length; i++) {
+            polls[i] = CompletableFuture.runAsync(() -> reader.get("txn-hot", 250, () -> "fallback"), executor);
+        }
+        CompletableFuture.allOf(polls).join();
+        System.out.println(reader.stats() + ", hedges queued on the timer " + timer.getQueue().size());
+        executor.shutdown();
+        timer.shutdown();
+    }
+}
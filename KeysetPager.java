@@ -0,0 +1,143 @@
+package permit.perf;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+// Keyset pagination: each page continues after the last id of the previous one
+// ("where id > ? order by id limit ?") instead of skipping an offset, so page 10000
+// costs the same as page 1. The client only sees an opaque continuation token.
+public class KeysetPager<T> {
+
+    public interface KeysetSource<T> {
+        // rows with id greater than afterId, ordered by id, at most limit of them
+        List<T> fetchAfter(long afterId, int limit);
+    }
+
+    public static class Page<T> {
+        private final List<T> rows;
+        private final String nextToken;
+
+        Page(List<T> rows, String nextToken) {
+            this.rows = rows;
+            this.nextToken = nextToken;
+        }
+
+        public List<T> getRows() {
+            return rows;
+        }
+
+        // null on the last page
+        public String getNextToken() {
+            return nextToken;
+        }
+    }
+
+    private static final String TOKEN_PREFIX = "k1:";
+
+    private final KeysetSource<T> source;
+    private final ToLongFunction<T> idOf;
+    private final int maxPageSize;
+
+    public KeysetPager(KeysetSource<T> source, ToLongFunction<T> idOf, int maxPageSize) {
+        this.source = source;
+        this.idOf = idOf;
+        this.maxPageSize = maxPageSize;
+    }
+
+    public Page<T> page(String token, int size) {
+        int limit = Math.max(1, Math.min(size, maxPageSize));
+        // one extra row tells whether another page exists
+        List<T> rows = source.fetchAfter(decode(token), limit + 1);
+        if (rows.size() <= limit) {
+            return new Page<>(rows, null);
+        }
+        List<T> pageRows = rows.subList(0, limit);
+        return new Page<>(pageRows, encode(idOf.applyAsLong(pageRows.get(limit - 1))));
+    }
+
+    // Writes every row after the token to out, chunk by chunk, flushing as it goes, so the
+    // response starts before the last row is read and only one chunk is held in memory.
+    public long stream(String token, Writer out, Function<T, String> rowFormat, int chunkSize) throws IOException {
+        // a chunk of 0 would never come back short and would loop forever
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        }
+        long afterId = decode(token);
+        long written = 0;
+        while (true) {
+            List<T> chunk = source.fetchAfter(afterId, chunkSize);
+            for (T row : chunk) {
+                out.write(rowFormat.apply(row));
+                out.write('\n');
+            }
+            out.flush();
+            written += chunk.size();
+            if (chunk.size() < chunkSize) {
+                return written;
+            }
+            afterId = idOf.applyAsLong(chunk.get(chunk.size() - 1));
+        }
+    }
+
+    static String encode(long lastId) {
+        byte[] raw = (TOKEN_PREFIX + lastId).getBytes(StandardCharsets.US_ASCII);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw);
+    }
+
+    static long decode(String token) {
+        if (token == null || token.isEmpty()) {
+            return Long.MIN_VALUE;
+        }
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.US_ASCII);
+            if (!raw.startsWith(TOKEN_PREFIX)) {
+                throw new IllegalArgumentException("Invalid continuation token");
+            }
+            return Long.parseLong(raw.substring(TOKEN_PREFIX.length()));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid continuation token", e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        final NavigableMap<Long, String> table = new TreeMap<>();
+        for (long id = 1; id <= 100000; id++) {
+            table.put(id, "permit-" + id);
+        }
+        // stands in for the repository query, the index seek makes every page the same cost
+        KeysetSource<Long> source = (afterId, limit) -> {
+            List<Long> rows = new ArrayList<>(limit);
+            for (Long id : table.tailMap(afterId, false).keySet()) {
+                if (rows.size() == limit) {
+                    break;
+                }
+                rows.add(id);
+            }
+            return Collections.unmodifiableList(rows);
+        };
+        KeysetPager<Long> pager = new KeysetPager<>(source, Long::longValue, 500);
+
+        Page<Long> first = pager.page(null, 3);
+        Page<Long> second = pager.page(first.getNextToken(), 3);
+        System.out.println(first.getRows() + " next=" + first.getNextToken() + " then " + second.getRows());
+
+        StringWriter out = new StringWriter();
+        long rows = pager.stream(null, out, table::get, 1000);
+        System.out.println("streamed " + rows + " rows, " + out.getBuffer().length() + " chars");
+        try {
+            pager.stream(null, new StringWriter(), table::get, 0);
+        } catch (IllegalArgumentException e) {
+            System.out.println("rejected: " + e.getMessage());
+        }
+    }
+}
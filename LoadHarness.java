@@ -0,0 +1,255 @@
+package permit.perf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+// Local load test for the permit service without the real Rate, Topology and CPS services.
+//
+//   java permit.perf.LoadHarness                      stand-ins only, driven directly as a self check
+//   java permit.perf.LoadHarness <permitBaseUrl> <requestsPerSecond> <seconds>
+//
+// The stand-ins answer after a log-normal delay with a configurable median and p99 and fail a
+// configurable share of calls with 503; otherwise each answers in the ObjectResponse shape its
+// client reads: rate details, a topology isValid flag, and for CPS the recorded status or the
+// payments of a permit. Point the service's client URLs at the printed ports.
+// The generator is open model: requests are sent on a fixed schedule whether or not earlier
+// ones have returned, and latency is measured from the scheduled start, so a stalled service
+// shows up in the percentiles instead of quietly lowering the request rate.
+public class LoadHarness {
+
+    static final int CUSTOMER_ID = 2;
+    static final int VENDOR_ID = 1;
+
+    // the "response" part of a successful answer for a request
+    public interface Responder {
+        String response(String method, String path);
+    }
+
+    public static class StandIn {
+        static {
+            // headers and body go out as separate writes; without this Nagle plus delayed
+            // acks add about 40 ms to every call
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+
+        private final HttpServer server;
+        private final double mu;
+        private final double sigma;
+        private final double errorRate;
+        private final Responder responder;
+
+        public StandIn(String name, long medianMillis, long p99Millis, double errorRate, Responder responder)
+                throws IOException {
+            this.mu = Math.log(medianMillis);
+            // 2.326 is the z score of the 99th percentile
+            this.sigma = Math.log((double) p99Millis / medianMillis) / 2.326;
+            this.errorRate = errorRate;
+            this.responder = responder;
+            this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+            this.server.createContext("/", this::handle);
+            this.server.setExecutor(Executors.newCachedThreadPool());
+            this.server.start();
+            System.out.println(name + " stand-in on http://127.0.0.1:" + getPort());
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            try (InputStream body = exchange.getRequestBody()) {
+                while (body.read() != -1) {
+                    // drain
+                }
+            }
+            Random random = ThreadLocalRandom.current();
+            long delay = Math.round(Math.exp(mu + sigma * random.nextGaussian()));
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            boolean fail = random.nextDouble() < errorRate;
+            byte[] body = (fail ? "{\"status\":{\"responseStatus\":\"FAILURE\"}}"
+                    : "{\"status\":{\"responseStatus\":\"SUCCESS\"},\"response\":"
+                            + responder.response(exchange.getRequestMethod(), exchange.getRequestURI().getPath()) + "}")
+                                    .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(fail ? 503 : 200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+
+        public int getPort() {
+            return server.getAddress().getPort();
+        }
+
+        public void stop() {
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdownNow();
+        }
+    }
+
+    static final class Operation {
+        final String name;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong ok = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+
+        Operation(String name) {
+            this.name = name;
+        }
+
+        String report(double seconds) {
+            return name + " throughput=" + Math.round(ok.get() / seconds) + "/s errors=" + errors.get() + " "
+                    + latency.summary();
+        }
+    }
+
+    // sends requestsPerSecond requests, alternating create and get, for the given time
+    static void run(final String baseUrl, int requestsPerSecond, int seconds) throws InterruptedException {
+        final Operation create = new Operation("create");
+        final Operation get = new Operation("get");
+        ExecutorService workers = Executors.newCachedThreadPool();
+        long interval = TimeUnit.SECONDS.toNanos(1) / requestsPerSecond;
+        long start = System.nanoTime();
+        long total = (long) requestsPerSecond * seconds;
+        // recently created permits, read back by the gets
+        final AtomicReferenceArray<UUID> created = new AtomicReferenceArray<>(1024);
+        final AtomicLong createdCount = new AtomicLong();
+        for (long i = 0; i < total; i++) {
+            final long intended = start + i * interval;
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            final boolean isCreate = i % 2 == 0;
+            workers.execute(() -> {
+                long count = createdCount.get();
+                // until the first create has gone through there is nothing to read
+                if (isCreate || count == 0) {
+                    UUID uuid = UUID.randomUUID();
+                    boolean ok = send(baseUrl + "/api/v1/permits/transaction", "POST", createBody(uuid));
+                    create.latency.recordNanos(System.nanoTime() - intended);
+                    (ok ? create.ok : create.errors).incrementAndGet();
+                    if (ok) {
+                        created.set((int) (createdCount.getAndIncrement() & (created.length() - 1)), uuid);
+                    }
+                } else {
+                    int slot = ThreadLocalRandom.current().nextInt((int) Math.min(count, created.length()));
+                    boolean ok = send(baseUrl + "/api/v1/permits/transaction/" + created.get(slot) + "?customerId="
+                            + CUSTOMER_ID, "GET", null);
+                    get.latency.recordNanos(System.nanoTime() - intended);
+                    (ok ? get.ok : get.errors).incrementAndGet();
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.MINUTES);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.println(create.report(elapsed));
+        System.out.println(get.report(elapsed));
+    }
+
+    // a request that passes validation: dates in order, one payment matching the total
+    static String createBody(UUID uuid) {
+        long now = System.currentTimeMillis();
+        int plate = ThreadLocalRandom.current().nextInt(1000000);
+        return "{\"transactionUuid\":\"" + uuid + "\",\"customerId\":" + CUSTOMER_ID + ",\"vendorId\":" + VENDOR_ID
+                + ",\"transactionTypeId\":1,\"rateId\":121,\"locationId\":123,\"permitNumber\":\"P" + plate
+                + "\",\"plateNumber\":\"P" + plate + "\",\"spaceId\":" + (plate % 500 + 1) + ",\"amount\":10"
+                + ",\"transactionDate\":" + now + ",\"activeDate\":" + now + ",\"expiryDate\":" + (now + 3600000)
+                + ",\"payments\":[{\"transactionUuid\":\"" + uuid + "\",\"customerId\":" + CUSTOMER_ID + ",\"vendorId\":"
+                + VENDOR_ID + ",\"amount\":10,\"authorizationNumber\":\"1234\",\"cardType\":\"Credit\","
+                + "\"last4Digits\":\"1234\",\"cardExpiry\":\"2030\",\"productType\":\"permit\",\"paymentType\":\"charge\","
+                + "\"processorTransactionId\":\"" + plate + "\",\"purchaseUTC\":" + now + ",\"deviceId\":\"D121\"}]}";
+    }
+
+    private static boolean send(String url, String method, String body) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(2000);
+            connection.setReadTimeout(10000);
+            if (body != null) {
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/json");
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(body.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            int status = connection.getResponseCode();
+            InputStream response = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (response != null) {
+                try (InputStream in = response) {
+                    byte[] buffer = new byte[4096];
+                    while (in.read(buffer) != -1) {
+                        // drain so the connection can be reused
+                    }
+                }
+            }
+            return status < 400;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // defaults can be overridden with -D<name>.median, -D<name>.p99 (millis) and -D<name>.errorRate
+    private static StandIn standIn(String name, long medianMillis, long p99Millis, double errorRate, Responder responder)
+            throws IOException {
+        return new StandIn(name, Long.getLong(name + ".median", medianMillis), Long.getLong(name + ".p99", p99Millis),
+                Double.parseDouble(System.getProperty(name + ".errorRate", String.valueOf(errorRate))), responder);
+    }
+
+    // RateDetailsResponse, the same rate whatever the id asked for
+    static String rateDetails(String method, String path) {
+        return "{\"rateId\":121,\"customerId\":" + CUSTOMER_ID + ",\"amount\":10,\"currency\":\"USD\"}";
+    }
+
+    // LocationValidationResponse
+    static String topology(String method, String path) {
+        return "{\"isValid\":true}";
+    }
+
+    // record answers a status string, getPermits the list of ThirdPartyPayment for the permit
+    static String cps(String method, String path) {
+        if (!"GET".equals(method)) {
+            return "\"SUCCESS\"";
+        }
+        return "[{\"id\":\"121\",\"amount\":10.0,\"customerId\":" + CUSTOMER_ID + ",\"vendorId\":" + VENDOR_ID
+                + ",\"authorizationNumber\":\"A121\",\"cardType\":\"VISA\",\"last4Digits\":\"1234\",\"cardExpiry\":\"2030\","
+                + "\"paymentType\":\"ONLINE\",\"processorTransactionId\":\"TR121\",\"productType\":\"PAY\",\"deviceId\":\"D121\","
+                + "\"purchaseUTC\":" + System.currentTimeMillis() + "}]";
+    }
+
+    public static void main(String[] args) throws Exception {
+        StandIn rate = standIn("rate-service", 5, 40, 0.001, LoadHarness::rateDetails);
+        StandIn topology = standIn("topology-service", 8, 80, 0.002, LoadHarness::topology);
+        StandIn cps = standIn("core-cps-service", 10, 120, 0.01, LoadHarness::cps);
+        try {
+            if (args.length == 3) {
+                run(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            } else {
+                // self check: drive the CPS stand-in as if it were the service
+                run("http://127.0.0.1:" + cps.getPort(), 200, 3);
+            }
+        } finally {
+            rate.stop();
+            topology.stop();
+            cps.stop();
+        }
+    }
+}
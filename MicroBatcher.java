@@ -0,0 +1,221 @@
+package permit.perf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Collects items submitted by many request threads and hands them to the handler in
+// one call. A batch is flushed when it holds maxBatchSize items or when maxDelayMillis
+// has passed since its first item arrived. Every caller gets its own future, completed
+// with its item's result or with the failure of the whole batch. Batches are handed to
+// up to maxConcurrentFlushes handler calls at once, so one slow downstream round trip does
+// not hold up the next batch; when all are busy the queue keeps filling the next batch.
+public class MicroBatcher<T, R> implements AutoCloseable {
+
+    public interface BatchHandler<T, R> {
+        // must return one result per item, in the same order
+        List<R> handle(List<T> batch) throws Exception;
+    }
+
+    static final class Pending<T, R> {
+        final T item;
+        final CompletableFuture<R> result = new CompletableFuture<>();
+
+        Pending(T item) {
+            this.item = item;
+        }
+    }
+
+    private final BlockingQueue<Pending<T, R>> queue;
+    private final BatchHandler<T, R> handler;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final Thread flusher;
+    private final ExecutorService flushers;
+    // one per flush in progress, taken by the collecting thread before it hands a batch on
+    private final Semaphore flushPermits;
+    private volatile boolean running = true;
+
+    public MicroBatcher(String name, BatchHandler<T, R> handler, int maxBatchSize, long maxDelayMillis, int queueCapacity,
+            int maxConcurrentFlushes) {
+        this.queue = new LinkedBlockingQueue<>(queueCapacity);
+        this.handler = handler;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.flushPermits = new Semaphore(maxConcurrentFlushes);
+        final AtomicInteger threads = new AtomicInteger();
+        this.flushers = Executors.newFixedThreadPool(maxConcurrentFlushes, r -> {
+            Thread thread = new Thread(r, name + "-flush-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher = new Thread(this::run, name);
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    public CompletableFuture<R> submit(T item) {
+        Pending<T, R> pending = new Pending<>(item);
+        if (!running || !queue.offer(pending)) {
+            pending.result.completeExceptionally(new IllegalStateException("batcher is full or closed"));
+        } else if (!running && queue.remove(pending)) {
+            // close() started after the check above and the flusher may already have done its
+            // final drain; if the item is still queued nobody else will complete it
+            pending.result.completeExceptionally(new IllegalStateException("batcher is closed"));
+        }
+        return pending.result;
+    }
+
+    private void run() {
+        while (running || !queue.isEmpty()) {
+            List<Pending<T, R>> batch = new ArrayList<>(maxBatchSize);
+            try {
+                Pending<T, R> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    Pending<T, R> next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // items already taken are still flushed below, then the rest of the queue drains
+                running = false;
+            }
+            if (!batch.isEmpty()) {
+                dispatch(batch);
+            }
+        }
+        flushers.shutdown();
+        try {
+            while (!flushers.awaitTermination(1, TimeUnit.SECONDS)) {
+                // handler calls still running, close() waits for them
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        failLate();
+    }
+
+    private void dispatch(final List<Pending<T, R>> batch) {
+        try {
+            flushPermits.acquire();
+        } catch (InterruptedException e) {
+            running = false;
+            flush(batch);
+            return;
+        }
+        flushers.execute(() -> {
+            try {
+                flush(batch);
+            } finally {
+                flushPermits.release();
+            }
+        });
+    }
+
+    // anything that slipped in while closing is failed rather than left hanging
+    private void failLate() {
+        Pending<T, R> late;
+        while ((late = queue.poll()) != null) {
+            late.result.completeExceptionally(new IllegalStateException("batcher is closed"));
+        }
+    }
+
+    private void flush(List<Pending<T, R>> batch) {
+        List<T> items = new ArrayList<>(batch.size());
+        for (Pending<T, R> pending : batch) {
+            items.add(pending.item);
+        }
+        try {
+            List<R> results = handler.handle(items);
+            if (results == null || results.size() != batch.size()) {
+                throw new IllegalStateException("handler returned " + (results == null ? 0 : results.size())
+                        + " results for " + batch.size() + " items");
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result.complete(results.get(i));
+            }
+        } catch (Throwable e) {
+            // an Error too, every caller in the batch must hear back
+            for (Pending<T, R> pending : batch) {
+                pending.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    // stops accepting items and waits until everything queued has been flushed
+    @Override
+    public void close() {
+        running = false;
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        failLate();
+    }
+
+    public static void main(String[] args) throws Exception {
+        final AtomicInteger cpsCalls = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        // each item stands for one request's ThirdPartyPaymentsList, merged into one record call
+        BatchHandler<List<String>, String> record = batch -> {
+            List<String> merged = new ArrayList<>();
+            for (List<String> payments : batch) {
+                merged.addAll(payments);
+            }
+            cpsCalls.incrementAndGet();
+            // a 20 ms CPS round trip
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            Thread.sleep(20);
+            inFlight.decrementAndGet();
+            return Collections.nCopies(batch.size(), "recorded " + merged.size() + " payments");
+        };
+
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        try (MicroBatcher<List<String>, String> batcher = new MicroBatcher<>("cps-batcher", record, 50, 5, 10000, 4)) {
+            for (int i = 0; i < 2000; i++) {
+                results.add(batcher.submit(Arrays.asList("payment-" + i + "-a", "payment-" + i + "-b")));
+            }
+        }
+        System.out.println("2000 submissions in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, CPS calls: "
+                + cpsCalls.get() + ", at most " + maxInFlight.get() + " at once, first result: " + results.get(0).get());
+
+        // a handler Error fails its batch but not the batcher
+        final AtomicInteger calls = new AtomicInteger();
+        BatchHandler<String, String> flaky = batch -> {
+            if (calls.incrementAndGet() == 1) {
+                throw new OutOfMemoryError("simulated");
+            }
+            return batch;
+        };
+        try (MicroBatcher<String, String> batcher = new MicroBatcher<>("flaky", flaky, 10, 1, 100, 1)) {
+            CompletableFuture<String> first = batcher.submit("a");
+            try {
+                first.join();
+            } catch (CompletionException e) {
+                System.out.println("first batch failed with " + e.getCause());
+            }
+            System.out.println("next batch: " + batcher.submit("b").join());
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package permit.perf;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Random;
+
+// An amount of money as a long count of minor units (cents) with a fixed scale of 2.
+// Arithmetic is exact and throws ArithmeticException on overflow instead of wrapping.
+// Converting from a BigDecimal is exact too: a value with more than two decimals, or one
+// that does not fit in a long, is rejected rather than rounded.
+public final class Money implements Comparable<Money> {
+
+    public static final int SCALE = 2;
+    static final long MINOR_PER_UNIT = 100;
+
+    public static final Money ZERO = new Money(0);
+
+    private final long minorUnits;
+
+    private Money(long minorUnits) {
+        this.minorUnits = minorUnits;
+    }
+
+    public static Money ofMinorUnits(long minorUnits) {
+        return minorUnits == 0 ? ZERO : new Money(minorUnits);
+    }
+
+    // whole units, the way PaymentRequest carries its amount
+    public static Money ofUnits(long units) {
+        return ofMinorUnits(Math.multiplyExact(units, MINOR_PER_UNIT));
+    }
+
+    public static Money of(BigDecimal amount) {
+        return ofMinorUnits(minorUnitsOf(amount));
+    }
+
+    // the amount in minor units, for comparisons that should not build a Money
+    public static long minorUnitsOf(BigDecimal amount) {
+        int scale = amount.scale();
+        if (scale >= 0 && scale <= SCALE && amount.precision() <= 15) {
+            if (scale == 0) {
+                // whole units small enough that the cents cannot overflow, no BigInteger needed
+                return amount.longValue() * MINOR_PER_UNIT;
+            }
+            // 10.5 or 10.50: doubleValue of so few digits is worked out in primitives, and
+            // below 2^50 the trip through double and back rounds to the exact count
+            return Math.round(amount.doubleValue() * MINOR_PER_UNIT);
+        }
+        // setScale with UNNECESSARY throws when digits would be dropped
+        return amount.setScale(SCALE, RoundingMode.UNNECESSARY).unscaledValue().longValueExact();
+    }
+
+    public long getMinorUnits() {
+        return minorUnits;
+    }
+
+    public Money plus(Money other) {
+        return ofMinorUnits(Math.addExact(minorUnits, other.minorUnits));
+    }
+
+    public Money minus(Money other) {
+        return ofMinorUnits(Math.subtractExact(minorUnits, other.minorUnits));
+    }
+
+    public Money times(long factor) {
+        return ofMinorUnits(Math.multiplyExact(minorUnits, factor));
+    }
+
+    public int signum() {
+        return Long.signum(minorUnits);
+    }
+
+    public BigDecimal toBigDecimal() {
+        return BigDecimal.valueOf(minorUnits, SCALE);
+    }
+
+    @Override
+    public int compareTo(Money other) {
+        return Long.compare(minorUnits, other.minorUnits);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Money && ((Money) o).minorUnits == minorUnits;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(minorUnits);
+    }
+
+    @Override
+    public String toString() {
+        return toBigDecimal().toPlainString();
+    }
+
+    public static void main(String[] args) {
+        // every operation must give exactly what BigDecimal gives, or fail where BigDecimal
+        // leaves the long range
+        Random random = new Random(42);
+        BigDecimal longMin = BigDecimal.valueOf(Long.MIN_VALUE, SCALE);
+        BigDecimal longMax = BigDecimal.valueOf(Long.MAX_VALUE, SCALE);
+        int checked = 0;
+        int overflows = 0;
+        for (int i = 0; i < 1000000; i++) {
+            long a = i % 10 == 0 ? random.nextLong() : random.nextInt();
+            long b = i % 10 == 1 ? random.nextLong() : random.nextInt();
+            int factor = random.nextInt(1000) - 500;
+            Money x = ofMinorUnits(a);
+            Money y = ofMinorUnits(b);
+            BigDecimal bx = x.toBigDecimal();
+            BigDecimal by = y.toBigDecimal();
+            if (!of(bx).equals(x) || Integer.signum(bx.compareTo(by)) != Integer.signum(x.compareTo(y))) {
+                throw new AssertionError("conversion or ordering differs for " + bx + ", " + by);
+            }
+            BigDecimal[] expected = { bx.add(by), bx.subtract(by), bx.multiply(BigDecimal.valueOf(factor)) };
+            for (int op = 0; op < expected.length; op++) {
+                boolean fits = expected[op].compareTo(longMin) >= 0 && expected[op].compareTo(longMax) <= 0;
+                try {
+                    Money actual = op == 0 ? x.plus(y) : op == 1 ? x.minus(y) : x.times(factor);
+                    if (!fits || actual.toBigDecimal().compareTo(expected[op]) != 0) {
+                        throw new AssertionError("operation " + op + " on " + bx + ", " + by + " gave " + actual);
+                    }
+                    checked++;
+                } catch (ArithmeticException e) {
+                    if (fits) {
+                        throw new AssertionError("operation " + op + " on " + bx + ", " + by + " overflowed");
+                    }
+                    overflows++;
+                }
+            }
+        }
+        System.out.println(checked + " results equal to BigDecimal, " + overflows + " overflows rejected");
+        for (String text : new String[] { "10", "10.5", "10.50", "10.505", "1e30" }) {
+            try {
+                System.out.println(text + " -> " + of(new BigDecimal(text)));
+            } catch (ArithmeticException e) {
+                System.out.println(text + " -> rejected: " + e.getMessage());
+            }
+        }
+
+        // rough comparison only, use a JMH harness for numbers worth quoting
+        int[] payments = { 6, 4, 12, 3, 25 };
+        int rounds = 5000000;
+        long sink = 0;
+        for (int warmup = 0; warmup < 2; warmup++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                BigDecimal sum = BigDecimal.ZERO;
+                for (int amount : payments) {
+                    sum = sum.add(new BigDecimal(amount));
+                }
+                sink += sum.signum();
+            }
+            long decimal = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                Money sum = ZERO;
+                for (int amount : payments) {
+                    sum = sum.plus(ofUnits(amount));
+                }
+                sink += sum.signum();
+            }
+            long money = System.nanoTime() - start;
+            System.out.println("BigDecimal sum " + decimal / rounds + " ns/op, Money sum " + money / rounds + " ns/op");
+        }
+        System.out.println(sink);
+    }
+}
@@ -0,0 +1,174 @@
+package permit.perf;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Runs the rate lookup and the topology lookup of a permit create at the same time
+// instead of one after the other, so the request waits for the slower call only. Errors
+// map the same way TransactionControllerTest pins them for the sequential code: a rejected
+// rate or an unreachable rate service is a 400 INVALID_RATE_ID, a rejected customer/location
+// relationship is a 400 TOPOLOGY_ERROR and an unreachable topology service a 400
+// INVALID_LOCATION_ID.
+public class ParallelValidation {
+
+    public static final String RATE = "rate";
+    public static final String TOPOLOGY = "topology";
+    public static final String INVALID_RATE_ID = "Invalid rate id";
+    public static final String INVALID_LOCATION_ID = "Invalid location id";
+    // stand-in for Beans.TOPOLOGY_ERROR
+    public static final String TOPOLOGY_ERROR = "Invalid customer location relationship";
+
+    public interface RateClient {
+        // returns null when the rate service answers BAD_REQUEST
+        String getRateDetails(int customerId, int rateId, long timestamp);
+    }
+
+    public interface TopologyClient {
+        // returns false when the topology service answers BAD_REQUEST
+        boolean validateCustomerRelationship(int customerId, int locationId);
+    }
+
+    // thrown when a downstream call times out or the circuit is open
+    public static class UnavailableException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public UnavailableException(String message) {
+            super(message);
+        }
+    }
+
+    public static class ValidationException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private final String identifier;
+        private final int status;
+
+        public ValidationException(String identifier, String message, int status) {
+            super(message);
+            this.identifier = identifier;
+            this.status = status;
+        }
+
+        public String getIdentifier() {
+            return identifier;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    public static class Result {
+        private final String rateDetails;
+        private final boolean locationValid;
+
+        Result(String rateDetails, boolean locationValid) {
+            this.rateDetails = rateDetails;
+            this.locationValid = locationValid;
+        }
+
+        public String getRateDetails() {
+            return rateDetails;
+        }
+
+        public boolean isLocationValid() {
+            return locationValid;
+        }
+    }
+
+    private final RateClient rateClient;
+    private final TopologyClient topologyClient;
+    private final ExecutorService executor;
+
+    public ParallelValidation(RateClient rateClient, TopologyClient topologyClient, ExecutorService executor) {
+        this.rateClient = rateClient;
+        this.topologyClient = topologyClient;
+        this.executor = executor;
+    }
+
+    public CompletableFuture<Result> validateAsync(int customerId, int rateId, int locationId, long timestamp) {
+        CompletableFuture<String> rate = CompletableFuture.supplyAsync(() -> {
+            String details;
+            try {
+                details = rateClient.getRateDetails(customerId, rateId, timestamp);
+            } catch (UnavailableException e) {
+                throw new ValidationException(RATE, INVALID_RATE_ID, 400);
+            }
+            if (details == null) {
+                throw new ValidationException(RATE, INVALID_RATE_ID, 400);
+            }
+            return details;
+        }, executor);
+        CompletableFuture<Boolean> topology = CompletableFuture.supplyAsync(() -> {
+            boolean valid;
+            try {
+                valid = topologyClient.validateCustomerRelationship(customerId, locationId);
+            } catch (UnavailableException e) {
+                throw new ValidationException(TOPOLOGY, INVALID_LOCATION_ID, 400);
+            }
+            if (!valid) {
+                throw new ValidationException(TOPOLOGY, TOPOLOGY_ERROR, 400);
+            }
+            return Boolean.TRUE;
+        }, executor);
+        // wait for the rate outcome before looking at topology, so the rate error is reported
+        // first, the same order the sequential code used, even when topology failed earlier
+        return rate.handle((details, error) -> error).thenCompose(error -> {
+            if (error != null) {
+                CompletableFuture<Result> failed = new CompletableFuture<>();
+                failed.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+                return failed;
+            }
+            return topology.thenApply(valid -> new Result(rate.join(), valid));
+        });
+    }
+
+    // Blocking variant for the controller.
+    public Result validate(int customerId, int rateId, int locationId, long timestamp) {
+        CompletableFuture<Result> combined = validateAsync(customerId, rateId, locationId, timestamp);
+        try {
+            return combined.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof ValidationException) {
+                throw (ValidationException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    public static void main(String[] args) {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        RateClient rate = (customerId, rateId, timestamp) -> {
+            sleep(300);
+            return rateId > 0 ? "rate-" + rateId : null;
+        };
+        TopologyClient topology = (customerId, locationId) -> {
+            sleep(300);
+            return locationId > 0;
+        };
+        ParallelValidation validation = new ParallelValidation(rate, topology, executor);
+
+        long start = System.currentTimeMillis();
+        Result result = validation.validate(2, 7, 11, start);
+        System.out.println(result.getRateDetails() + " valid location " + result.isLocationValid()
+                + " in " + (System.currentTimeMillis() - start) + " ms");
+
+        for (int[] ids : new int[][] { { 0, 0 }, { 7, 0 } }) {
+            try {
+                validation.validate(2, ids[0], ids[1], start);
+            } catch (ValidationException e) {
+                System.out.println(e.getStatus() + " " + e.getIdentifier() + " " + e.getMessage());
+            }
+        }
+        executor.shutdown();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
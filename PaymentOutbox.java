@@ -0,0 +1,364 @@
+package permit.perf;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+// Local outbox for CPS payment recording. append() makes the intent durable in a journal
+// file and returns, a dispatcher thread then delivers pending records in batches, retrying
+// with capped exponential backoff until CPS accepts them. Records that were appended but
+// not delivered before a restart are read back from the journal.
+//
+// Journal writes are group committed: threads that append at the same moment share one
+// write and one fsync, and nobody holds the pending lock while the disk works. Once a write
+// or fsync fails the journal is treated as broken and every later append fails too; a
+// restart recovers from what reached the disk.
+//
+// Delivery is at-least-once, and only from the moment append() returns. The journal cannot
+// join the database transaction, so call append() after the permit save has committed,
+// with the transactionUuid as id. A crash between that commit and append() returning loses
+// the payment: nothing here knows about it, and only a reconciliation of permits without
+// recorded payments will find it. The other way round a record can be delivered twice (a
+// crash after CPS accepted a batch but before its "D" line reached the disk), so the sender
+// must make delivery idempotent on the id, for example by passing it to CPS as the
+// idempotency key.
+//
+// Journal lines: "P <id> <base64 payload> <crc>" when appended, "D <id> <crc>" once
+// delivered. The crc is a CRC32 over the rest of the line, so a line torn by a crash does
+// not pass for a shorter record. Recovery stops at the first line that fails the check and
+// drops it and everything after it.
+public class PaymentOutbox implements AutoCloseable {
+
+    public interface Sender {
+        // ids.get(i) is the transactionUuid of payloads.get(i); a repeated id must not record twice
+        void send(List<String> ids, List<String> payloads) throws Exception;
+    }
+
+    // ids end up between spaces in the journal, so only these characters are allowed
+    private static final Pattern VALID_ID = Pattern.compile("[A-Za-z0-9._:-]{1,128}");
+
+    private final Path journal;
+    private final Sender sender;
+    private final int batchSize;
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+    private final LinkedHashMap<String, String> pending = new LinkedHashMap<>();
+    private final Object backoffLock = new Object();
+    // group commit state, guarded by journalLock
+    private final Object journalLock = new Object();
+    private final StringBuilder buffered = new StringBuilder();
+    private long bufferedSeq;
+    private long durableSeq;
+    private boolean flushing;
+    private IOException journalError;
+    private long journalWrites;
+    private final FileChannel channel;
+    private final Thread dispatcher;
+    private volatile boolean running = true;
+
+    public PaymentOutbox(Path journal, Sender sender, int batchSize, long baseBackoffMillis, long maxBackoffMillis)
+            throws IOException {
+        this.journal = journal;
+        this.sender = sender;
+        this.batchSize = batchSize;
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        recover();
+        this.channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        this.dispatcher = new Thread(this::dispatch, "payment-outbox");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    // reads back undelivered records and rewrites the journal with only those
+    private void recover() throws IOException {
+        if (!Files.exists(journal)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(journal, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!replay(line)) {
+                    // a torn tail from a crash, nothing after it was acknowledged to a caller
+                    break;
+                }
+            }
+        }
+        Path compacted = journal.resolveSibling(journal.getFileName() + ".tmp");
+        StringBuilder content = new StringBuilder();
+        for (Map.Entry<String, String> record : pending.entrySet()) {
+            content.append(appendLine(record.getKey(), record.getValue()));
+        }
+        Files.write(compacted, content.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(compacted, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // applies one journal line, false if it fails its checksum or does not parse
+    private boolean replay(String line) {
+        int lastSpace = line.lastIndexOf(' ');
+        if (lastSpace < 0 || !line.substring(lastSpace + 1).equals(checksum(line.substring(0, lastSpace)))) {
+            return false;
+        }
+        // ids are validated on append and never contain a space
+        String[] parts = line.substring(0, lastSpace).split(" ");
+        if (parts.length == 3 && "P".equals(parts[0])) {
+            try {
+                pending.put(parts[1], new String(Base64.getDecoder().decode(parts[2]), StandardCharsets.UTF_8));
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+            return true;
+        }
+        if (parts.length == 2 && "D".equals(parts[0])) {
+            pending.remove(parts[1]);
+            return true;
+        }
+        return false;
+    }
+
+    private static String appendLine(String id, String payload) {
+        return framed("P " + id + " " + Base64.getEncoder().encodeToString(payload.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String framed(String record) {
+        return record + " " + checksum(record) + "\n";
+    }
+
+    private static String checksum(String record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+
+    // Called once the permit save has committed. Once this returns the record survives a
+    // crash and will be delivered at least once; before that a crash loses it.
+    public void append(String id, String payload) {
+        if (id == null || !VALID_ID.matcher(id).matches()) {
+            throw new IllegalArgumentException("outbox id must match " + VALID_ID + ": " + id);
+        }
+        writeDurably(appendLine(id, payload));
+        synchronized (pending) {
+            pending.put(id, payload);
+            pending.notifyAll();
+        }
+    }
+
+    // Adds the lines to the next journal write and returns once they are on disk. The first
+    // waiting thread writes and fsyncs everything buffered so far, the others wait for it.
+    private void writeDurably(String lines) {
+        long seq;
+        synchronized (journalLock) {
+            buffered.append(lines);
+            seq = ++bufferedSeq;
+        }
+        while (true) {
+            String batch;
+            long batchSeq;
+            synchronized (journalLock) {
+                while (flushing && durableSeq < seq && journalError == null) {
+                    try {
+                        journalLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("interrupted before the journal write completed", e);
+                    }
+                }
+                if (journalError != null) {
+                    throw new UncheckedIOException(journalError);
+                }
+                if (durableSeq >= seq) {
+                    return;
+                }
+                flushing = true;
+                batch = buffered.toString();
+                buffered.setLength(0);
+                batchSeq = bufferedSeq;
+            }
+            IOException error = null;
+            try {
+                ByteBuffer bytes = ByteBuffer.wrap(batch.getBytes(StandardCharsets.UTF_8));
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+            synchronized (journalLock) {
+                flushing = false;
+                if (error == null) {
+                    durableSeq = batchSeq;
+                    journalWrites++;
+                } else {
+                    journalError = error;
+                }
+                journalLock.notifyAll();
+            }
+        }
+    }
+
+    private void dispatch() {
+        int failures = 0;
+        while (running) {
+            List<String> ids = new ArrayList<>(batchSize);
+            List<String> payloads = new ArrayList<>(batchSize);
+            synchronized (pending) {
+                while (running && pending.isEmpty()) {
+                    try {
+                        pending.wait(1000);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                for (Map.Entry<String, String> record : pending.entrySet()) {
+                    if (ids.size() == batchSize) {
+                        break;
+                    }
+                    ids.add(record.getKey());
+                    payloads.add(record.getValue());
+                }
+            }
+            if (ids.isEmpty()) {
+                continue;
+            }
+            try {
+                sender.send(ids, payloads);
+                failures = 0;
+                StringBuilder delivered = new StringBuilder();
+                synchronized (pending) {
+                    for (String id : ids) {
+                        delivered.append(framed("D " + id));
+                        pending.remove(id);
+                    }
+                }
+                // outside the pending lock so appends are not held up by this write
+                writeDurably(delivered.toString());
+            } catch (Exception e) {
+                failures++;
+                if (!sleep(backoff(failures))) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // full jitter: a random wait up to base * 2^failures, capped
+    private long backoff(int failures) {
+        long ceiling = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(failures, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    // close() notifies backoffLock to cut the wait short, new appends do not
+    private boolean sleep(long millis) {
+        synchronized (backoffLock) {
+            try {
+                if (running) {
+                    backoffLock.wait(Math.max(1, millis));
+                }
+                return running;
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+    }
+
+    // number of write + fsync rounds so far
+    public long journalWrites() {
+        synchronized (journalLock) {
+            return journalWrites;
+        }
+    }
+
+    public int pendingCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // no interrupt here, it would close the channel in the middle of a write
+        running = false;
+        synchronized (pending) {
+            pending.notifyAll();
+        }
+        synchronized (backoffLock) {
+            backoffLock.notifyAll();
+        }
+        try {
+            dispatcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path journal = Files.createTempFile("payment-outbox", ".log");
+        final AtomicInteger attempts = new AtomicInteger();
+        final Set<String> recorded = ConcurrentHashMap.newKeySet();
+        // CPS is down for the first two attempts and ignores ids it has already recorded
+        Sender cps = (ids, payloads) -> {
+            if (attempts.incrementAndGet() <= 2) {
+                throw new IllegalStateException("CPS unavailable");
+            }
+            recorded.addAll(ids);
+        };
+
+        try (final PaymentOutbox outbox = new PaymentOutbox(journal, cps, 500, 20, 1000)) {
+            ExecutorService requestThreads = Executors.newFixedThreadPool(32);
+            for (int i = 0; i < 1000; i++) {
+                final String id = UUID.randomUUID().toString();
+                requestThreads.execute(() -> outbox.append(id, "{\"amount\":10,\"customerId\":2}"));
+            }
+            requestThreads.shutdown();
+            requestThreads.awaitTermination(1, TimeUnit.MINUTES);
+            System.out.println("appended 1000 from 32 threads in " + outbox.journalWrites() + " journal writes, pending "
+                    + outbox.pendingCount());
+            while (outbox.pendingCount() > 0) {
+                Thread.sleep(10);
+            }
+            System.out.println("delivered after " + attempts.get() + " attempts, " + recorded.size() + " recorded");
+        }
+        // a crash in the middle of a write: one whole record, then a line cut short
+        String whole = appendLine("txn-1", "{\"amount\":10}");
+        String torn = appendLine("txn-2", "{\"amount\":20,\"customerId\":2}");
+        Files.write(journal, (whole + torn.substring(0, torn.length() - 12)).getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+        attempts.set(0);
+        recorded.clear();
+        try (PaymentOutbox outbox = new PaymentOutbox(journal, cps, 100, 20, 1000)) {
+            while (outbox.pendingCount() > 0) {
+                Thread.sleep(10);
+            }
+            System.out.println("after the torn write recovered " + recorded);
+            outbox.append("txn 1", "{}");
+        } catch (IllegalArgumentException e) {
+            System.out.println("rejected: " + e.getMessage());
+        }
+        Files.delete(journal);
+    }
+}
@@ -0,0 +1,123 @@
+package permit.perf;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+// JSON binding for the hot permit types: PermitRequest with its payments, and the
+// ObjectResponse envelope around it. The reader and writer are built once from one
+// configured ObjectMapper and shared; they are immutable and thread safe, so a call does
+// no mapper setup or type lookup and holds no per-thread buffer. Dates are epoch millis,
+// the default Jackson format the clients already send.
+public final class PermitJson {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            // fields added by newer clients are skipped, as before
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            // 10.5 for an int id is an error, not 10
+            .configure(DeserializationFeature.ACCEPT_FLOAT_AS_INT, false);
+
+    private static final ObjectReader REQUEST_READER = MAPPER.readerFor(PermitRequest.class);
+    private static final ObjectWriter REQUEST_WRITER = MAPPER.writerFor(PermitRequest.class);
+    private static final ObjectWriter RESPONSE_WRITER = MAPPER.writerFor(Envelope.class);
+
+    // {"status":{"responseStatus":"..."},"response":{...}}
+    static final class Envelope {
+        private final Status status;
+        private final PermitRequest response;
+
+        Envelope(String responseStatus, PermitRequest response) {
+            this.status = new Status(responseStatus);
+            this.response = response;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public PermitRequest getResponse() {
+            return response;
+        }
+    }
+
+    static final class Status {
+        private final String responseStatus;
+
+        Status(String responseStatus) {
+            this.responseStatus = responseStatus;
+        }
+
+        public String getResponseStatus() {
+            return responseStatus;
+        }
+    }
+
+    private PermitJson() {
+    }
+
+    public static String writeRequest(PermitRequest request) {
+        try {
+            return REQUEST_WRITER.writeValueAsString(request);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("permit request could not be written", e);
+        }
+    }
+
+    public static String writeResponse(String responseStatus, PermitRequest request) {
+        try {
+            return RESPONSE_WRITER.writeValueAsString(new Envelope(responseStatus, request));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("permit response could not be written", e);
+        }
+    }
+
+    // malformed JSON, a number out of range for its field or a bad uuid are IllegalArgumentException
+    public static PermitRequest readRequest(CharSequence json) {
+        try {
+            return REQUEST_READER.readValue(json.toString());
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException(e.getOriginalMessage(), e);
+        }
+    }
+
+    public static void main(String[] args) {
+        PermitRequest request = PermitValidator.sampleRequest();
+        request.setPlateNumber("P \"12\"");
+        String json = writeRequest(request);
+        System.out.println(json);
+        PermitRequest copy = readRequest(json.replace("\"spaceId\"", "\"extra\":{\"a\":[1,\"]\"]},\"spaceId\""));
+        System.out.println("round trip equal: " + json.equals(writeRequest(copy)));
+        System.out.println(writeResponse("SUCCESS", copy).length() + " chars in the envelope");
+        System.out.println("payments null stays null: "
+                + (readRequest(json.replaceFirst("\"payments\":\\[.*\\]", "\"payments\":null")).getPayments() == null));
+        for (String bad : new String[] { "{\"customerId\":4294967298}", "{\"spaceId\":10.5}", "{\"plateNumber\":\"P\\",
+                "{\"plateNumber\":\"\\u12\"}" }) {
+            try {
+                readRequest(bad);
+                System.out.println(bad + " accepted");
+            } catch (IllegalArgumentException e) {
+                System.out.println(bad + " rejected");
+            }
+        }
+
+        // rough comparison only, use a JMH harness for numbers worth quoting
+        int rounds = 500000;
+        long sink = 0;
+        for (int warmup = 0; warmup < 2; warmup++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                sink += readRequest(json).getSpaceId();
+            }
+            long read = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                sink += writeResponse("SUCCESS", request).length();
+            }
+            long write = System.nanoTime() - start;
+            System.out.println("read " + read / rounds + " ns/op, write envelope " + write / rounds + " ns/op");
+        }
+        System.out.println(sink);
+    }
+}
@@ -0,0 +1,62 @@
+package permit.perf;
+
+import java.time.Instant;
+import java.util.UUID;
+
+// Immutable copy of the stored PermitTransaction fields the examples in this package use.
+public final class PermitRecord {
+
+    private final UUID transactionUuid;
+    private final int customerId;
+    private final String plateNumber;
+    private final int locationId;
+    private final int spaceId;
+    private final Instant activeDate;
+    private final Instant expiryDate;
+
+    public PermitRecord(UUID transactionUuid, int customerId, String plateNumber, int locationId, int spaceId,
+            Instant activeDate, Instant expiryDate) {
+        this.transactionUuid = transactionUuid;
+        this.customerId = customerId;
+        this.plateNumber = plateNumber;
+        this.locationId = locationId;
+        this.spaceId = spaceId;
+        this.activeDate = activeDate;
+        this.expiryDate = expiryDate;
+    }
+
+    public UUID getTransactionUuid() {
+        return transactionUuid;
+    }
+
+    public int getCustomerId() {
+        return customerId;
+    }
+
+    public String getPlateNumber() {
+        return plateNumber;
+    }
+
+    public int getLocationId() {
+        return locationId;
+    }
+
+    public int getSpaceId() {
+        return spaceId;
+    }
+
+    public Instant getActiveDate() {
+        return activeDate;
+    }
+
+    public Instant getExpiryDate() {
+        return expiryDate;
+    }
+
+    @Override
+    public String toString() {
+        return "PermitRecord{transactionUuid=" + transactionUuid + ",customerId=" + customerId + ",plateNumber="
+                + plateNumber + ",locationId=" + locationId + ",spaceId=" + spaceId + ",activeDate=" + activeDate
+                + ",expiryDate=" + expiryDate + "}";
+    }
+}
@@ -0,0 +1,142 @@
+package permit.perf;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+// Plain copy of the fields of PermitTransactionRequest and PaymentRequest that the
+// examples in this package work with.
+public class PermitRequest {
+
+    private UUID transactionUuid;
+    private int customerId;
+    private int vendorId;
+    private Date transactionDate;
+    private Date activeDate;
+    private Date expiryDate;
+    private String plateNumber;
+    private int spaceId;
+    private BigDecimal amount;
+    // null when the request carries no payments; an empty list is rejected
+    private List<Payment> payments;
+
+    public static class Payment {
+        private UUID transactionUuid;
+        private int customerId;
+        private int vendorId;
+        private int amount;
+
+        public UUID getTransactionUuid() {
+            return transactionUuid;
+        }
+
+        public void setTransactionUuid(UUID transactionUuid) {
+            this.transactionUuid = transactionUuid;
+        }
+
+        public int getCustomerId() {
+            return customerId;
+        }
+
+        public void setCustomerId(int customerId) {
+            this.customerId = customerId;
+        }
+
+        public int getVendorId() {
+            return vendorId;
+        }
+
+        public void setVendorId(int vendorId) {
+            this.vendorId = vendorId;
+        }
+
+        public int getAmount() {
+            return amount;
+        }
+
+        public void setAmount(int amount) {
+            this.amount = amount;
+        }
+    }
+
+    public UUID getTransactionUuid() {
+        return transactionUuid;
+    }
+
+    public void setTransactionUuid(UUID transactionUuid) {
+        this.transactionUuid = transactionUuid;
+    }
+
+    public int getCustomerId() {
+        return customerId;
+    }
+
+    public void setCustomerId(int customerId) {
+        this.customerId = customerId;
+    }
+
+    public int getVendorId() {
+        return vendorId;
+    }
+
+    public void setVendorId(int vendorId) {
+        this.vendorId = vendorId;
+    }
+
+    public Date getTransactionDate() {
+        return transactionDate;
+    }
+
+    public void setTransactionDate(Date transactionDate) {
+        this.transactionDate = transactionDate;
+    }
+
+    public Date getActiveDate() {
+        return activeDate;
+    }
+
+    public void setActiveDate(Date activeDate) {
+        this.activeDate = activeDate;
+    }
+
+    public Date getExpiryDate() {
+        return expiryDate;
+    }
+
+    public void setExpiryDate(Date expiryDate) {
+        this.expiryDate = expiryDate;
+    }
+
+    public String getPlateNumber() {
+        return plateNumber;
+    }
+
+    public void setPlateNumber(String plateNumber) {
+        this.plateNumber = plateNumber;
+    }
+
+    public int getSpaceId() {
+        return spaceId;
+    }
+
+    public void setSpaceId(int spaceId) {
+        this.spaceId = spaceId;
+    }
+
+    public BigDecimal getAmount() {
+        return amount;
+    }
+
+    public void setAmount(BigDecimal amount) {
+        this.amount = amount;
+    }
+
+    public List<Payment> getPayments() {
+        return payments;
+    }
+
+    public void setPayments(List<Payment> payments) {
+        this.payments = payments;
+    }
+}
@@ -0,0 +1,300 @@
+package permit.perf;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+// Read-through cache of assembled GET permit transaction responses, keyed by
+// (transactionUuid, customerId). The permit part is kept until a write on this node
+// invalidates it. The payments part is refetched from CPS once it is older than the
+// staleness window or once this node records new payments for the transaction. Refetches go
+// through a HedgedReader, so concurrent reads of one transaction share one CPS call and a
+// slow call is hedged within paymentsBudgetMillis. Each refetch is tagged with the payments
+// version it started under, so a read after new payments never joins a call that began
+// before them. While CPS is failing the last payments
+// are served until they are paymentsMaxStaleMillis old, after that the response goes out
+// without payments. At most maxEntries responses are held, least recently read first out.
+public class PermitResponseCache<P> {
+
+    public static final class Response<P> {
+        private final PermitRecord permit;
+        private final List<P> payments;
+        private final boolean paymentsIncluded;
+
+        Response(PermitRecord permit, List<P> payments, boolean paymentsIncluded) {
+            this.permit = permit;
+            this.payments = payments;
+            this.paymentsIncluded = paymentsIncluded;
+        }
+
+        public PermitRecord getPermit() {
+            return permit;
+        }
+
+        public List<P> getPayments() {
+            return payments;
+        }
+
+        // false when CPS could not be reached, the same partial response the GET path gives today
+        public boolean isPaymentsIncluded() {
+            return paymentsIncluded;
+        }
+    }
+
+    static final class Key {
+        final UUID transactionUuid;
+        final int customerId;
+
+        Key(UUID transactionUuid, int customerId) {
+            this.transactionUuid = transactionUuid;
+            this.customerId = customerId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return customerId == other.customerId && transactionUuid.equals(other.transactionUuid);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * transactionUuid.hashCode() + customerId;
+        }
+    }
+
+    // one CPS refetch; reads coalesce only with a refetch of the same payments version
+    static final class PaymentsLoad {
+        final Key key;
+        final long version;
+
+        PaymentsLoad(Key key, long version) {
+            this.key = key;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PaymentsLoad)) {
+                return false;
+            }
+            PaymentsLoad other = (PaymentsLoad) o;
+            return version == other.version && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * key.hashCode() + Long.hashCode(version);
+        }
+    }
+
+    static final class Cached<P> {
+        final PermitRecord permit;
+        volatile List<P> payments;
+        volatile long paymentsLoadedAt;
+        // replaced by onPaymentsRecorded so a load that started earlier does not store old
+        // payments; drawn from one sequence, so a new entry never reuses an evicted one's
+        volatile long paymentsVersion;
+
+        Cached(PermitRecord permit, long paymentsVersion) {
+            this.permit = permit;
+            this.paymentsVersion = paymentsVersion;
+        }
+    }
+
+    private final BiFunction<UUID, Integer, PermitRecord> permits;
+    private final HedgedReader<PaymentsLoad, List<P>> payments;
+    private final long paymentsStaleMillis;
+    private final long paymentsMaxStaleMillis;
+    private final long paymentsBudgetMillis;
+    private final LinkedHashMap<Key, Cached<P>> entries;
+    // misses reading the permit row right now, guarded by entries; onPermitSaved drops the
+    // key's token so a row read before the write is not cached after it
+    private final Map<Key, Object> permitLoads = new HashMap<>();
+    private final AtomicLong paymentsVersions = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public PermitResponseCache(BiFunction<UUID, Integer, PermitRecord> permits,
+            final BiFunction<UUID, Integer, List<P>> payments, ExecutorService executor, ScheduledExecutorService timer,
+            final int maxEntries, long paymentsStaleMillis, long paymentsMaxStaleMillis, long paymentsBudgetMillis) {
+        this.permits = permits;
+        this.payments = new HedgedReader<>(load -> payments.apply(load.key.transactionUuid, load.key.customerId),
+                executor, timer, 0.9, paymentsBudgetMillis / 2);
+        this.paymentsStaleMillis = paymentsStaleMillis;
+        this.paymentsMaxStaleMillis = paymentsMaxStaleMillis;
+        this.paymentsBudgetMillis = paymentsBudgetMillis;
+        this.entries = new LinkedHashMap<Key, Cached<P>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Cached<P>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    // null when the permit does not exist
+    public Response<P> get(UUID transactionUuid, int customerId) {
+        Key key = new Key(transactionUuid, customerId);
+        Cached<P> cached;
+        synchronized (entries) {
+            cached = entries.get(key);
+        }
+        if (cached == null) {
+            misses.incrementAndGet();
+            Object token = new Object();
+            synchronized (entries) {
+                permitLoads.put(key, token);
+            }
+            PermitRecord permit = null;
+            try {
+                permit = permits.apply(transactionUuid, customerId);
+            } finally {
+                synchronized (entries) {
+                    // still our token: no write to this permit since the read started
+                    if (permitLoads.remove(key, token) && permit != null) {
+                        cached = new Cached<>(permit, paymentsVersions.incrementAndGet());
+                        entries.put(key, cached);
+                    }
+                }
+            }
+            if (permit == null) {
+                return null;
+            }
+            if (cached == null) {
+                cached = new Cached<>(permit, paymentsVersions.incrementAndGet());
+            }
+        } else {
+            hits.incrementAndGet();
+        }
+        List<P> current = cached.payments;
+        long loadedAt = cached.paymentsLoadedAt;
+        if (current == null || System.currentTimeMillis() - loadedAt > paymentsStaleMillis) {
+            long version = cached.paymentsVersion;
+            // null when CPS failed or did not answer within the budget
+            List<P> loaded = payments.get(new PaymentsLoad(key, version), paymentsBudgetMillis, () -> null);
+            if (loaded != null) {
+                current = Collections.unmodifiableList(loaded);
+                synchronized (cached) {
+                    if (cached.paymentsVersion == version) {
+                        cached.payments = current;
+                        cached.paymentsLoadedAt = System.currentTimeMillis();
+                    }
+                }
+            } else if (current == null || System.currentTimeMillis() - loadedAt > paymentsMaxStaleMillis) {
+                // too old to pass off as current, answer without them as the GET path does today
+                return new Response<>(cached.permit, Collections.<P>emptyList(), false);
+            }
+        }
+        return new Response<>(cached.permit, current, true);
+    }
+
+    // the permit row was written on this node
+    public void onPermitSaved(UUID transactionUuid, int customerId) {
+        Key key = new Key(transactionUuid, customerId);
+        synchronized (entries) {
+            permitLoads.remove(key);
+            entries.remove(key);
+        }
+    }
+
+    // this node recorded payments for the transaction, refetch them on the next read
+    public void onPaymentsRecorded(UUID transactionUuid, int customerId) {
+        Cached<P> cached;
+        synchronized (entries) {
+            cached = entries.get(new Key(transactionUuid, customerId));
+        }
+        if (cached != null) {
+            synchronized (cached) {
+                cached.paymentsVersion = paymentsVersions.incrementAndGet();
+                cached.payments = null;
+            }
+        }
+    }
+
+    public String stats() {
+        synchronized (entries) {
+            return "entries=" + entries.size() + " hits=" + hits.get() + " misses=" + misses.get();
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        final AtomicInteger databaseReads = new AtomicInteger();
+        final AtomicInteger cpsCalls = new AtomicInteger();
+        final AtomicBoolean cpsDown = new AtomicBoolean();
+        final UUID uuid = UUID.randomUUID();
+        BiFunction<UUID, Integer, PermitRecord> repository = (transactionUuid, customerId) -> {
+            databaseReads.incrementAndGet();
+            return new PermitRecord(transactionUuid, customerId, "P123", 11, 10, Instant.now(),
+                    Instant.now().plusSeconds(3600));
+        };
+        BiFunction<UUID, Integer, List<String>> cps = (transactionUuid, customerId) -> {
+            cpsCalls.incrementAndGet();
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (cpsDown.get()) {
+                throw new IllegalStateException("CPS unavailable");
+            }
+            return Arrays.asList("payment-1", "payment-2");
+        };
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1);
+        timer.setRemoveOnCancelPolicy(true);
+        final PermitResponseCache<String> cache = new PermitResponseCache<>(repository, cps, executor, timer, 10000, 100,
+                300, 250);
+
+        for (int i = 0; i < 100; i++) {
+            cache.get(uuid, 2);
+        }
+        System.out.println("100 reads: database " + databaseReads.get() + ", cps " + cpsCalls.get());
+        cache.onPaymentsRecorded(uuid, 2);
+        // a dashboard polling the transaction right after the payment, from twenty threads
+        CompletableFuture<?>[] polls = new CompletableFuture<?>[20];
+        for (int i = 0; i < polls.length; i++) {
+            polls[i] = CompletableFuture.runAsync(() -> cache.get(uuid, 2), executor);
+        }
+        CompletableFuture.allOf(polls).join();
+        System.out.println("20 concurrent reads after a payment: cps " + cpsCalls.get());
+        // a payment lands while a refetch that started before it is still in flight
+        cache.onPaymentsRecorded(uuid, 2);
+        CompletableFuture<?> early = CompletableFuture.runAsync(() -> cache.get(uuid, 2), executor);
+        Thread.sleep(5);
+        cache.onPaymentsRecorded(uuid, 2);
+        int before = cpsCalls.get();
+        cache.get(uuid, 2);
+        early.join();
+        System.out.println("read after a payment made its own CPS call: " + (cpsCalls.get() > before));
+        cache.onPermitSaved(uuid, 2);
+        Response<String> response = cache.get(uuid, 2);
+        System.out.println("after invalidations: database " + databaseReads.get() + ", cps " + cpsCalls.get()
+                + ", payments " + response.getPayments() + ", " + cache.stats());
+
+        cpsDown.set(true);
+        Thread.sleep(150);
+        System.out.println("CPS down, payments 150 ms old: included " + cache.get(uuid, 2).isPaymentsIncluded());
+        Thread.sleep(200);
+        System.out.println("CPS down, payments 350 ms old: included " + cache.get(uuid, 2).isPaymentsIncluded());
+        executor.shutdown();
+        timer.shutdown();
+    }
+}
@@ -0,0 +1,440 @@
+package permit.perf;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Fires an event when a permit's activeDate or expiryDate passes, so downstream state (space
+// occupancy, the active permit index, ...) can react instead of polling the permit table.
+//
+// Deadlines are kept in a hierarchical timing wheel: LEVELS wheels of 512 slots, each slot
+// of level n spanning 512^n ticks. A timer goes into the lowest level whose range reaches its
+// deadline and moves down a level each time the wheel below comes round to it, so scheduling
+// and cancelling are a linked list insert or unlink no matter how many timers are pending.
+// One thread advances the wheel every tick and hands everything that fell due in that pass to
+// the listeners as one batch. Timers are not persisted; after a restart reload() schedules
+// again from the permits in the repository.
+//
+// A permit whose activation has fired (or that was already active when it was scheduled)
+// gets a DEACTIVATION carrying the old record when it is cancelled or rescheduled, so
+// listeners can undo what they did for it. A permit scheduled while already active gets an
+// ACTIVATION straight away; reload() skips that, listeners rebuild their own state.
+public class PermitTimingWheel implements AutoCloseable {
+
+    public enum Kind {
+        ACTIVATION, EXPIRY, DEACTIVATION
+    }
+
+    public interface Listener {
+        // called on the wheel thread, keep it short or hand the batch on; the list is read-only
+        // and shared with the other listeners
+        void onEvents(List<Event> events);
+    }
+
+    public static final class Event {
+        final Kind kind;
+        final PermitRecord permit;
+        final long deadlineMillis;
+
+        Event(Kind kind, PermitRecord permit, long deadlineMillis) {
+            this.kind = kind;
+            this.permit = permit;
+            this.deadlineMillis = deadlineMillis;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public PermitRecord getPermit() {
+            return permit;
+        }
+
+        public long getDeadlineMillis() {
+            return deadlineMillis;
+        }
+    }
+
+    // an entry in a slot's circular list; a slot's head is a timer with no permit
+    static final class Timer {
+        final Kind kind;
+        final PermitRecord permit;
+        final long deadlineMillis;
+        final long deadlineTick;
+        Timer prev = this;
+        Timer next = this;
+
+        Timer(Kind kind, PermitRecord permit, long deadlineMillis, long deadlineTick) {
+            this.kind = kind;
+            this.permit = permit;
+            this.deadlineMillis = deadlineMillis;
+            this.deadlineTick = deadlineTick;
+        }
+
+        void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = this;
+            next = this;
+        }
+
+        boolean isLinked() {
+            return next != this;
+        }
+    }
+
+    static final int BITS = 9;
+    static final int SLOTS = 1 << BITS;
+    static final int MASK = SLOTS - 1;
+    // 512^4 ticks, about 218 years at 100 ms
+    static final int LEVELS = 4;
+
+    private final long tickMillis;
+    private final long startMillis;
+    private final Timer[][] wheels = new Timer[LEVELS][SLOTS];
+    // activation and expiry timers per permit, so a changed or deleted permit can be cancelled
+    private final Map<UUID, Timer[]> byPermit = new HashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Object lock = new Object();
+    private final Thread ticker;
+    private final LatencyHistogram lag = new LatencyHistogram();
+    private final AtomicLong fired = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    // every tick up to and including this one has been processed
+    private long currentTick;
+    private int pending;
+    // events from schedule() and cancel(), handed on by the wheel thread with its next batch
+    private List<Event> queued = new ArrayList<>();
+    private volatile boolean running = true;
+
+    public PermitTimingWheel(long tickMillis) {
+        this(tickMillis, true);
+    }
+
+    // a wheel that is not started only moves when advance() is called, for the self check
+    PermitTimingWheel(long tickMillis, boolean start) {
+        this.tickMillis = tickMillis;
+        this.startMillis = System.currentTimeMillis();
+        for (Timer[] wheel : wheels) {
+            for (int i = 0; i < SLOTS; i++) {
+                wheel[i] = new Timer(null, null, 0, 0);
+            }
+        }
+        this.ticker = new Thread(this::run, "permit-timing-wheel");
+        this.ticker.setDaemon(true);
+        if (start) {
+            this.ticker.start();
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    // (re)schedules the permit's activation and expiry after a save; deadlines already past
+    // are skipped, and a permit active now is activated at once
+    public void schedule(PermitRecord permit) {
+        synchronized (lock) {
+            scheduleLocked(permit, true);
+        }
+    }
+
+    public void cancel(UUID transactionUuid) {
+        synchronized (lock) {
+            cancelLocked(transactionUuid, System.currentTimeMillis());
+        }
+    }
+
+    private void scheduleLocked(PermitRecord permit, boolean activateNow) {
+        long now = System.currentTimeMillis();
+        long active = permit.getActiveDate().toEpochMilli();
+        long expiry = permit.getExpiryDate().toEpochMilli();
+        cancelLocked(permit.getTransactionUuid(), now);
+        Timer[] timers = new Timer[2];
+        if (active > now) {
+            timers[0] = add(Kind.ACTIVATION, permit, active);
+        } else if (activateNow && expiry > now) {
+            queued.add(new Event(Kind.ACTIVATION, permit, now));
+        }
+        if (expiry > now) {
+            timers[1] = add(Kind.EXPIRY, permit, expiry);
+        }
+        if (timers[0] != null || timers[1] != null) {
+            byPermit.put(permit.getTransactionUuid(), timers);
+        }
+    }
+
+    // after a restart: schedules every permit that has not expired yet. Moments that passed while
+    // the node was down are not replayed; listeners rebuild their own state at startup, as
+    // SpaceOccupancy.rebuild and ActivePermitIndex.rebuild do
+    public void reload(Iterable<PermitRecord> unexpiredPermits) {
+        for (PermitRecord permit : unexpiredPermits) {
+            synchronized (lock) {
+                scheduleLocked(permit, false);
+            }
+        }
+    }
+
+    public int pending() {
+        synchronized (lock) {
+            return pending;
+        }
+    }
+
+    // how late events were delivered, from their deadline to the listener call
+    public LatencyHistogram lag() {
+        return lag;
+    }
+
+    public String stats() {
+        return "pending=" + pending() + " fired=" + fired.get() + " batches=" + batches.get() + " lag " + lag.summary();
+    }
+
+    private void cancelLocked(UUID transactionUuid, long now) {
+        Timer[] timers = byPermit.remove(transactionUuid);
+        if (timers != null) {
+            // expiry still to come and no activation pending: listeners see the permit as active
+            if (timers[1] != null && timers[1].isLinked() && (timers[0] == null || !timers[0].isLinked())) {
+                queued.add(new Event(Kind.DEACTIVATION, timers[1].permit, now));
+            }
+            for (Timer timer : timers) {
+                if (timer != null && timer.isLinked()) {
+                    timer.unlink();
+                    pending--;
+                }
+            }
+        }
+    }
+
+    private Timer add(Kind kind, PermitRecord permit, long deadlineMillis) {
+        // a deadline inside the current tick fires on the next one
+        long tick = Math.max(currentTick + 1, (deadlineMillis - startMillis + tickMillis - 1) / tickMillis);
+        Timer timer = new Timer(kind, permit, deadlineMillis, tick);
+        place(timer);
+        pending++;
+        return timer;
+    }
+
+    // lowest level whose slots, counted from the current tick, still reach the deadline
+    private void place(Timer timer) {
+        int level = 0;
+        while (level < LEVELS - 1
+                && (timer.deadlineTick >>> (BITS * level)) - (currentTick >>> (BITS * level)) >= SLOTS) {
+            level++;
+        }
+        Timer head = wheels[level][(int) (timer.deadlineTick >>> (BITS * level)) & MASK];
+        timer.prev = head.prev;
+        timer.next = head;
+        head.prev.next = timer;
+        head.prev = timer;
+    }
+
+    // processes one tick and collects what fell due into the batch
+    void advance(List<Event> due) {
+        long tick = currentTick + 1;
+        // timers cascade relative to the tick being processed: one due now must land in the
+        // level 0 slot drained below, not back in the slot being emptied
+        currentTick = tick;
+        // higher levels first, so a timer can drop several levels in one tick
+        for (int level = LEVELS - 1; level > 0; level--) {
+            if ((tick & ((1L << (BITS * level)) - 1)) == 0) {
+                Timer head = wheels[level][(int) (tick >>> (BITS * level)) & MASK];
+                // detach the slot first, so a timer a whole top level rotation away that goes
+                // back into this slot is not visited again
+                Timer timer = head.next;
+                head.next = head;
+                head.prev = head;
+                while (timer != head) {
+                    Timer next = timer.next;
+                    timer.prev = timer;
+                    timer.next = timer;
+                    place(timer);
+                    timer = next;
+                }
+            }
+        }
+        Timer head = wheels[0][(int) tick & MASK];
+        Timer timer = head.next;
+        while (timer != head) {
+            Timer next = timer.next;
+            timer.unlink();
+            pending--;
+            Timer[] timers = byPermit.get(timer.permit.getTransactionUuid());
+            if (timers != null && (timer.kind == Kind.EXPIRY || timers[1] == null)) {
+                byPermit.remove(timer.permit.getTransactionUuid());
+            }
+            due.add(new Event(timer.kind, timer.permit, timer.deadlineMillis));
+            timer = next;
+        }
+    }
+
+    private void run() {
+        List<Event> due = new ArrayList<>();
+        while (running) {
+            long nowTick = (System.currentTimeMillis() - startMillis) / tickMillis;
+            synchronized (lock) {
+                if (!queued.isEmpty()) {
+                    due.addAll(queued);
+                    queued = new ArrayList<>();
+                }
+                // catches up tick by tick after a pause, nothing is skipped
+                while (currentTick < nowTick) {
+                    advance(due);
+                }
+            }
+            if (!due.isEmpty()) {
+                deliver(due);
+                due = new ArrayList<>();
+            }
+            long sleep = startMillis + (nowTick + 1) * tickMillis - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+            }
+        }
+    }
+
+    private void deliver(List<Event> events) {
+        long now = System.currentTimeMillis();
+        for (Event event : events) {
+            lag.recordNanos(TimeUnit.MILLISECONDS.toNanos(Math.max(0, now - event.deadlineMillis)));
+        }
+        fired.addAndGet(events.size());
+        batches.incrementAndGet();
+        List<Event> batch = Collections.unmodifiableList(events);
+        for (Listener listener : listeners) {
+            try {
+                listener.onEvents(batch);
+            } catch (Throwable e) {
+                // one listener failing must not stop the others or the wheel
+                System.err.println("permit timing wheel listener failed: " + e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        ticker.interrupt();
+        try {
+            ticker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // every timer fires on its own deadline tick, including ones that cascade on the last slot
+    // of a rotation (tick 1023 comes down from level 1 at tick 512, 2^18 + 511 from level 2)
+    static void selfCheck() {
+        PermitTimingWheel wheel = new PermitTimingWheel(1, false);
+        long[] ticks = { 511, 1023, 1023, 1023, (1L << 18) + 511, (1L << 18) + 511, (1L << 18) + 511, (1L << 27) + 5 };
+        Instant now = Instant.now();
+        synchronized (wheel.lock) {
+            for (long tick : ticks) {
+                wheel.add(Kind.EXPIRY, new PermitRecord(UUID.randomUUID(), 2, "P" + tick, 11, 1, now, now),
+                        wheel.startMillis + tick * wheel.tickMillis);
+            }
+            int fired = 0;
+            List<Event> due = new ArrayList<>();
+            while (wheel.currentTick < ticks[ticks.length - 1]) {
+                wheel.advance(due);
+                for (Event event : due) {
+                    long tick = (event.getDeadlineMillis() - wheel.startMillis) / wheel.tickMillis;
+                    if (tick != wheel.currentTick) {
+                        throw new AssertionError("timer for tick " + tick + " fired at tick " + wheel.currentTick);
+                    }
+                }
+                fired += due.size();
+                due.clear();
+            }
+            if (fired != ticks.length || wheel.pending != 0) {
+                throw new AssertionError(fired + " of " + ticks.length + " timers fired, " + wheel.pending + " pending");
+            }
+        }
+        System.out.println("self check: " + ticks.length + " timers fired on their ticks, up to tick " + ticks[ticks.length - 1]);
+    }
+
+    public static void main(String[] args) throws Exception {
+        selfCheck();
+        final SpaceOccupancy occupancy = new SpaceOccupancy();
+        final ActivePermitIndex index = new ActivePermitIndex();
+        PermitTimingWheel wheel = new PermitTimingWheel(10);
+        // a careless listener ahead of the real one: it may not empty the batch for the others,
+        // and the Error it throws on its first batch is logged instead of killing the wheel
+        final AtomicBoolean first = new AtomicBoolean(true);
+        wheel.addListener(events -> {
+            if (first.getAndSet(false)) {
+                try {
+                    events.clear();
+                } catch (UnsupportedOperationException e) {
+                    throw new AssertionError("listener tried to consume the batch");
+                }
+            }
+        });
+        wheel.addListener(events -> {
+            for (Event event : events) {
+                PermitRecord permit = event.getPermit();
+                if (event.getKind() == Kind.ACTIVATION) {
+                    occupancy.onActivated(permit);
+                } else {
+                    // EXPIRY, or DEACTIVATION of the old record of a changed or deleted permit
+                    occupancy.onExpired(permit);
+                    index.onRemoved(permit.getPlateNumber(), permit.getTransactionUuid());
+                }
+            }
+        });
+
+        // a million permits, one in a hundred activating for a second soon after loading, the rest later
+        Instant now = Instant.now().plusSeconds(8);
+        List<PermitRecord> permits = new ArrayList<>();
+        for (int i = 0; i < 1000000; i++) {
+            boolean soon = i % 100 == 0;
+            Instant active = now.plusMillis(soon ? 200 + i % 1000 : 3600000L + i);
+            Instant expiry = active.plusMillis(soon ? 1000 : 86400000L * (1 + i % 30));
+            permits.add(new PermitRecord(UUID.randomUUID(), 2, "P" + i, 11, i % 20000 + 1, active, expiry));
+        }
+        long start = System.nanoTime();
+        wheel.reload(permits);
+        long scheduled = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 1; i < permits.size(); i += 100) {
+            wheel.cancel(permits.get(i).getTransactionUuid());
+        }
+        long cancelled = System.nanoTime() - start;
+        System.out.println("scheduled " + permits.size() + " permits at " + scheduled / permits.size()
+                + " ns each, cancelled " + permits.size() / 100 + " at " + cancelled / (permits.size() / 100) + " ns each");
+
+        Thread.sleep(Math.max(0, now.toEpochMilli() + 800 - System.currentTimeMillis()));
+        System.out.println("0.8 s in: " + occupancy.coveredCount(11) + " spaces covered");
+        Thread.sleep(Math.max(0, now.toEpochMilli() + 2600 - System.currentTimeMillis()));
+        System.out.println("2.6 s in: " + occupancy.coveredCount(11) + " spaces covered, " + wheel.stats());
+
+        // an active permit moves to another space, another one is deleted
+        PermitRecord moved = new PermitRecord(UUID.randomUUID(), 2, "M1", 11, 30001, Instant.now().plusMillis(50),
+                Instant.now().plusSeconds(3600));
+        PermitRecord deleted = new PermitRecord(UUID.randomUUID(), 2, "D1", 11, 30002, Instant.now().plusMillis(50),
+                Instant.now().plusSeconds(3600));
+        wheel.schedule(moved);
+        wheel.schedule(deleted);
+        Thread.sleep(200);
+        System.out.println("both active: " + occupancy.covered(11).contains(30001) + " " + occupancy.covered(11).contains(30002));
+        wheel.schedule(new PermitRecord(moved.getTransactionUuid(), 2, "M1", 11, 30003, moved.getActiveDate(),
+                moved.getExpiryDate()));
+        wheel.cancel(deleted.getTransactionUuid());
+        Thread.sleep(100);
+        System.out.println("after the move and delete: 30001 " + occupancy.covered(11).contains(30001) + ", 30003 "
+                + occupancy.covered(11).contains(30003) + ", 30002 " + occupancy.covered(11).contains(30002));
+        wheel.close();
+    }
+}
@@ -0,0 +1,145 @@
+package permit.perf;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Bloom filter over the (transactionUuid, customerId) pairs already stored. A "no" is
+// certain, so the duplicate check only goes to findByTransactionUuidAndCustomerId when the
+// filter answers "maybe". Bits are only ever set, never cleared, so there are no false
+// negatives as long as every pair is put() before its save is attempted; a save that then
+// fails only leaves behind a future false positive.
+//
+// The filter only knows the saves that went through it. With more than one node, a pair
+// saved by another node is a false negative here, so either every node's saves must be fed
+// into every node's filter (a shared filter, or a stream of saved pairs), or the filter is
+// a hint only and the unique key on (transaction_uuid, customer_id) stays the real check.
+public class PermitUniquenessFilter {
+
+    public interface DuplicateLookup {
+        boolean exists(UUID transactionUuid, int customerId);
+    }
+
+    private final AtomicLongArray bits;
+    private final long numBits;
+    private final int numHashes;
+    private final AtomicLong inserted = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong maybes = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+
+    public PermitUniquenessFilter(long expectedEntries, double falsePositiveRate) {
+        if (expectedEntries <= 0) {
+            throw new IllegalArgumentException("expectedEntries must be positive: " + expectedEntries);
+        }
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1: " + falsePositiveRate);
+        }
+        long m = (long) Math.ceil(-expectedEntries * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min(Integer.MAX_VALUE - 8, (m + 63) / 64);
+        this.numBits = words * 64L;
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / expectedEntries * Math.log(2)));
+        this.bits = new AtomicLongArray(words);
+    }
+
+    public void put(UUID transactionUuid, int customerId) {
+        long h1 = mix(transactionUuid.getMostSignificantBits() ^ mix(transactionUuid.getLeastSignificantBits() + customerId));
+        long h2 = mix(h1 ^ customerId) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current;
+            do {
+                current = bits.get(word);
+            } while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask));
+        }
+        inserted.incrementAndGet();
+    }
+
+    public boolean mightContain(UUID transactionUuid, int customerId) {
+        long h1 = mix(transactionUuid.getMostSignificantBits() ^ mix(transactionUuid.getLeastSignificantBits() + customerId));
+        long h2 = mix(h1 ^ customerId) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the uniqueness check of the create path, the database is asked only on a "maybe"
+    public boolean isDuplicate(UUID transactionUuid, int customerId, DuplicateLookup repository) {
+        lookups.incrementAndGet();
+        if (!mightContain(transactionUuid, customerId)) {
+            return false;
+        }
+        maybes.incrementAndGet();
+        boolean exists = repository.exists(transactionUuid, customerId);
+        if (!exists) {
+            falsePositives.incrementAndGet();
+        }
+        return exists;
+    }
+
+    // (1 - e^(-k n / m))^k for the number of pairs inserted so far
+    public double expectedFalsePositiveRate() {
+        double fill = 1 - Math.exp(-numHashes * (double) inserted.get() / numBits);
+        return Math.pow(fill, numHashes);
+    }
+
+    // false positives among all lookups that were not real duplicates
+    public double observedFalsePositiveRate() {
+        long negatives = lookups.get() - (maybes.get() - falsePositives.get());
+        return negatives == 0 ? 0 : (double) falsePositives.get() / negatives;
+    }
+
+    public String stats() {
+        return "bits=" + numBits + " hashes=" + numHashes + " inserted=" + inserted.get() + " lookups=" + lookups.get()
+                + " databaseReads=" + maybes.get() + " falsePositives=" + falsePositives.get();
+    }
+
+    // murmur3 fmix64
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public static void main(String[] args) {
+        int existing = 200000;
+        PermitUniquenessFilter filter = new PermitUniquenessFilter(1000000, 0.01);
+        final Set<String> table = new HashSet<>();
+        UUID saved = null;
+        // seeded at startup from the repository
+        for (int i = 0; i < existing; i++) {
+            UUID uuid = UUID.randomUUID();
+            saved = uuid;
+            table.add(uuid + ":" + (i % 50));
+            filter.put(uuid, i % 50);
+        }
+        DuplicateLookup repository = (uuid, customerId) -> table.contains(uuid + ":" + customerId);
+
+        int duplicates = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.isDuplicate(UUID.randomUUID(), i % 50, repository)) {
+                duplicates++;
+            }
+        }
+        System.out.println(filter.stats() + " duplicates=" + duplicates);
+        System.out.println("last saved pair is duplicate: " + filter.isDuplicate(saved, (existing - 1) % 50, repository));
+        System.out.printf("expected fp rate %.5f, observed %.5f%n", filter.expectedFalsePositiveRate(),
+                filter.observedFalsePositiveRate());
+        try {
+            new PermitUniquenessFilter(0, 0.01);
+        } catch (IllegalArgumentException e) {
+            System.out.println("rejected: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package permit.perf;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+// All permit transaction request checks as one ordered pipeline. The rules run in the
+// order the controller reported errors before, so the first failing rule gives the same
+// error as today. The payment list is walked once for the sum, vendor, transaction uuid
+// and customer checks. A valid request allocates nothing: rules are stateless constants
+// and fixed errors are shared instances, only errors that carry a value are built.
+public final class PermitValidator {
+
+    public static final String PERMIT = "permit";
+    public static final String PAYMENT = "payment";
+
+    public static final class Violation {
+        private final String identifier;
+        private final String message;
+
+        Violation(String identifier, String message) {
+            this.identifier = identifier;
+            this.message = message;
+        }
+
+        public String getIdentifier() {
+            return identifier;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return identifier + ": " + message;
+        }
+    }
+
+    // named after the Beans constants the controller reports, so each check keeps its current message
+    static final Violation PREMIT_TRANSACTION_DATE_ERROR = new Violation(PERMIT,
+            "Transaction date can not be after active date");
+    static final Violation PREMIT_ACTIVE_DATE_ERROR = new Violation(PERMIT, "Active date can not be after expiry date");
+    static final Violation INVALID_PLATE_NUMBER = new Violation(PERMIT, "Invalid plate number");
+    static final Violation INVALID_SPACE_ID = new Violation(PERMIT, "Invalid space id");
+    static final Violation INVALID_TOTAL_AMMOUNT_ERROR = new Violation(PERMIT, "Invalid total amount");
+    static final Violation EMPTY_PAYMENTS_ERROR = new Violation(PAYMENT, "Payments can not be empty");
+    static final Violation INVALID_TOTAL_AMMOUNT_SUM_ERROR = new Violation(PAYMENT,
+            "Sum of payments does not match total amount");
+    static final Violation VENDOR_ID_MISMATCH_ERROR_MSG = new Violation(PAYMENT, "Vendor id of payment does not match");
+    static final String INVALID_TRANSACTION_UUID = "Invalid transaction uuid ";
+    static final String INVALID_CUSTOMER_ID = "Invalid customer id ";
+
+    interface Rule {
+        // null when the request passes
+        Violation check(PermitRequest request);
+    }
+
+    private static final Rule[] RULES = {
+            PermitValidator::checkDates,
+            PermitValidator::checkPlateNumber,
+            request -> request.getSpaceId() <= 0 ? INVALID_SPACE_ID : null,
+            request -> request.getAmount() == null || request.getAmount().signum() <= 0
+                    ? INVALID_TOTAL_AMMOUNT_ERROR : null,
+            request -> request.getPayments() != null && request.getPayments().isEmpty() ? EMPTY_PAYMENTS_ERROR : null,
+            PermitValidator::checkPayments
+    };
+
+    private PermitValidator() {
+    }
+
+    public static Violation validate(PermitRequest request) {
+        for (Rule rule : RULES) {
+            Violation violation = rule.check(request);
+            if (violation != null) {
+                return violation;
+            }
+        }
+        return null;
+    }
+
+    private static Violation checkDates(PermitRequest request) {
+        Date transaction = request.getTransactionDate();
+        Date active = request.getActiveDate();
+        Date expiry = request.getExpiryDate();
+        if (transaction == null || active == null || transaction.getTime() > active.getTime()) {
+            return PREMIT_TRANSACTION_DATE_ERROR;
+        }
+        if (expiry == null || active.getTime() > expiry.getTime()) {
+            return PREMIT_ACTIVE_DATE_ERROR;
+        }
+        return null;
+    }
+
+    private static Violation checkPlateNumber(PermitRequest request) {
+        String plate = request.getPlateNumber();
+        if (plate != null) {
+            for (int i = 0; i < plate.length(); i++) {
+                if (!Character.isWhitespace(plate.charAt(i))) {
+                    return null;
+                }
+            }
+        }
+        return INVALID_PLATE_NUMBER;
+    }
+
+    // one walk over the payments; the first offender of each kind is remembered so the
+    // errors keep their old precedence: sum, then vendor, then uuid, then customer. A request
+    // without payments is paid later, so there is no sum to hold the total to
+    private static Violation checkPayments(PermitRequest request) {
+        List<PermitRequest.Payment> payments = request.getPayments();
+        if (payments == null) {
+            return null;
+        }
+        UUID uuid = request.getTransactionUuid();
+        long sum = 0;
+        int badVendor = -1;
+        int badUuid = -1;
+        int badCustomer = -1;
+        for (int i = 0, n = payments.size(); i < n; i++) {
+            PermitRequest.Payment payment = payments.get(i);
+            sum += payment.getAmount();
+            if (badVendor < 0 && payment.getVendorId() != request.getVendorId()) {
+                badVendor = i;
+            }
+            if (badUuid < 0 && (uuid == null || !uuid.equals(payment.getTransactionUuid()))) {
+                badUuid = i;
+            }
+            if (badCustomer < 0 && payment.getCustomerId() != request.getCustomerId()) {
+                badCustomer = i;
+            }
+        }
+        if (!sumMatches(request.getAmount(), sum)) {
+            return INVALID_TOTAL_AMMOUNT_SUM_ERROR;
+        }
+        if (badVendor >= 0) {
+            return VENDOR_ID_MISMATCH_ERROR_MSG;
+        }
+        if (badUuid >= 0) {
+            return new Violation(PAYMENT, INVALID_TRANSACTION_UUID + payments.get(badUuid).getTransactionUuid());
+        }
+        if (badCustomer >= 0) {
+            return new Violation(PAYMENT, INVALID_CUSTOMER_ID + payments.get(badCustomer).getCustomerId());
+        }
+        return null;
+    }
+
+    // payments are whole units and the total may carry cents, so both sides are compared in
+    // minor units; a total with more than two decimals, or a sum that overflows, can never match
+    private static boolean sumMatches(BigDecimal amount, long sum) {
+        try {
+            return Money.minorUnitsOf(amount) == Math.multiplyExact(sum, Money.MINOR_PER_UNIT);
+        } catch (ArithmeticException e) {
+            return false;
+        }
+    }
+
+    // the checks as the controller runs them today: separate passes, an error list per request
+    static List<Violation> legacyValidate(PermitRequest request) {
+        List<Violation> errors = new ArrayList<>();
+        if (request.getTransactionDate().after(request.getActiveDate())) {
+            errors.add(PREMIT_TRANSACTION_DATE_ERROR);
+        }
+        if (request.getActiveDate().after(request.getExpiryDate())) {
+            errors.add(PREMIT_ACTIVE_DATE_ERROR);
+        }
+        if (request.getPlateNumber() == null || request.getPlateNumber().trim().isEmpty()) {
+            errors.add(INVALID_PLATE_NUMBER);
+        }
+        if (request.getSpaceId() <= 0) {
+            errors.add(INVALID_SPACE_ID);
+        }
+        if (request.getAmount().compareTo(BigDecimal.ZERO) <= 0) {
+            errors.add(INVALID_TOTAL_AMMOUNT_ERROR);
+        }
+        if (request.getPayments() == null) {
+            return errors;
+        }
+        BigDecimal sum = BigDecimal.ZERO;
+        for (PermitRequest.Payment payment : request.getPayments()) {
+            sum = sum.add(new BigDecimal(payment.getAmount()));
+        }
+        if (sum.compareTo(request.getAmount()) != 0) {
+            errors.add(INVALID_TOTAL_AMMOUNT_SUM_ERROR);
+        }
+        for (PermitRequest.Payment payment : request.getPayments()) {
+            if (payment.getVendorId() != request.getVendorId()) {
+                errors.add(VENDOR_ID_MISMATCH_ERROR_MSG);
+            }
+        }
+        for (PermitRequest.Payment payment : request.getPayments()) {
+            if (!payment.getTransactionUuid().equals(request.getTransactionUuid())) {
+                errors.add(new Violation(PAYMENT, INVALID_TRANSACTION_UUID + payment.getTransactionUuid().toString()));
+            }
+        }
+        for (PermitRequest.Payment payment : request.getPayments()) {
+            if (payment.getCustomerId() != request.getCustomerId()) {
+                errors.add(new Violation(PAYMENT, INVALID_CUSTOMER_ID + payment.getCustomerId()));
+            }
+        }
+        return errors;
+    }
+
+    static PermitRequest sampleRequest() {
+        UUID uuid = UUID.randomUUID();
+        Date now = new Date();
+        PermitRequest request = new PermitRequest();
+        request.setTransactionUuid(uuid);
+        request.setCustomerId(2);
+        request.setVendorId(1);
+        request.setTransactionDate(now);
+        request.setActiveDate(now);
+        request.setExpiryDate(new Date(now.getTime() + 3600000));
+        request.setPlateNumber("P123");
+        request.setSpaceId(10);
+        request.setAmount(new BigDecimal(10));
+        request.setPayments(new ArrayList<PermitRequest.Payment>());
+        for (int amount : new int[] { 6, 4 }) {
+            PermitRequest.Payment payment = new PermitRequest.Payment();
+            payment.setTransactionUuid(uuid);
+            payment.setCustomerId(2);
+            payment.setVendorId(1);
+            payment.setAmount(amount);
+            request.getPayments().add(payment);
+        }
+        return request;
+    }
+
+    public static void main(String[] args) {
+        PermitRequest request = sampleRequest();
+        System.out.println("valid request: " + validate(request));
+        request.getPayments().get(1).setCustomerId(1);
+        System.out.println("customer mismatch: " + validate(request));
+        request.setPlateNumber(" ");
+        System.out.println("blank plate: " + validate(request));
+        PermitRequest unpaid = sampleRequest();
+        unpaid.setPayments(null);
+        System.out.println("no payments: " + validate(unpaid));
+        unpaid.setPayments(new ArrayList<PermitRequest.Payment>());
+        System.out.println("empty payments: " + validate(unpaid));
+        PermitRequest late = sampleRequest();
+        late.setTransactionDate(new Date(late.getActiveDate().getTime() + 1000));
+        System.out.println("transaction after active: " + validate(late) + ", same in legacy mode: "
+                + (legacyValidate(late).get(0) == validate(late)));
+
+        // rough comparison only, use a JMH harness for numbers worth quoting
+        PermitRequest valid = sampleRequest();
+        int rounds = 5000000;
+        long sink = 0;
+        for (int warmup = 0; warmup < 2; warmup++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                sink += legacyValidate(valid).size();
+            }
+            long legacy = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                sink += validate(valid) == null ? 0 : 1;
+            }
+            long pipeline = System.nanoTime() - start;
+            System.out.println("legacy " + legacy / rounds + " ns/op, pipeline " + pipeline / rounds + " ns/op");
+        }
+        System.out.println(sink);
+    }
+}
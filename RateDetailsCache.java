@@ -0,0 +1,240 @@
+package permit.perf;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bounded local cache in front of getRateDetails(customerId, rateId, timestamp).
+// The timestamp is bucketed so calls made within the same bucket share one entry, and the
+// rate service is asked for the rate at the start of the bucket. A rate that changes inside a
+// bucket is therefore seen from the next bucket on; that is the price of sharing entries.
+// Choose bucketMillis no larger than the delay the business accepts there, or pass 1 to
+// key on the caller's exact timestamp (one entry per distinct timestamp, no sharing).
+// Entries older than refreshAfter are still served while a background reload runs,
+// entries older than expireAfter are reloaded on the calling thread. A load that overlaps
+// invalidateCustomer or invalidateAll is returned to its caller but not cached.
+public class RateDetailsCache<V> {
+
+    public interface RateLoader<V> {
+        V load(int customerId, int rateId, long timestamp);
+    }
+
+    static final class Key {
+        final int customerId;
+        final int rateId;
+        final long bucket;
+
+        Key(int customerId, int rateId, long bucket) {
+            this.customerId = customerId;
+            this.rateId = rateId;
+            this.bucket = bucket;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return customerId == other.customerId && rateId == other.rateId && bucket == other.bucket;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = 31 * customerId + rateId;
+            return 31 * h + (int) (bucket ^ (bucket >>> 32));
+        }
+    }
+
+    static final class CachedRate<V> {
+        final V value;
+        final long loadedAt;
+        boolean refreshing;
+
+        CachedRate(V value, long loadedAt) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private final RateLoader<V> loader;
+    private final ExecutorService refresher;
+    private final long bucketMillis;
+    private final long refreshAfterMillis;
+    private final long expireAfterMillis;
+    private final LinkedHashMap<Key, CachedRate<V>> entries;
+    // generations of invalidations, guarded by entries: a load only caches its value when
+    // neither its customer nor the whole cache was invalidated while it ran
+    private final Map<Integer, Long> customerGenerations = new HashMap<>();
+    private long allGeneration;
+    private long lastGeneration;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public RateDetailsCache(RateLoader<V> loader, ExecutorService refresher, final int maxSize,
+            long bucketMillis, long refreshAfterMillis, long expireAfterMillis) {
+        this.loader = loader;
+        this.refresher = refresher;
+        this.bucketMillis = bucketMillis;
+        this.refreshAfterMillis = refreshAfterMillis;
+        this.expireAfterMillis = expireAfterMillis;
+        // access order gives LRU eviction once maxSize is reached
+        this.entries = new LinkedHashMap<Key, CachedRate<V>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedRate<V>> eldest) {
+                if (size() > maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public V getRateDetails(int customerId, int rateId, long timestamp) {
+        long bucket = timestamp / bucketMillis;
+        Key key = new Key(customerId, rateId, bucket);
+        long now = System.currentTimeMillis();
+        CachedRate<V> entry;
+        long generation;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry != null && now - entry.loadedAt < expireAfterMillis) {
+                if (now - entry.loadedAt >= refreshAfterMillis && !entry.refreshing) {
+                    entry.refreshing = true;
+                    staleHits.incrementAndGet();
+                    scheduleRefresh(key, generation(customerId));
+                } else {
+                    hits.incrementAndGet();
+                }
+                return entry.value;
+            }
+            generation = generation(customerId);
+        }
+        misses.incrementAndGet();
+        // load with the start of the bucket so every caller of the bucket sees the same answer
+        V value = loader.load(customerId, rateId, bucket * bucketMillis);
+        if (value != null) {
+            put(key, value, generation);
+        }
+        return value;
+    }
+
+    private void scheduleRefresh(final Key key, final long generation) {
+        refresher.execute(() -> {
+            try {
+                V value = loader.load(key.customerId, key.rateId, key.bucket * bucketMillis);
+                if (value != null) {
+                    put(key, value, generation);
+                    return;
+                }
+            } catch (RuntimeException e) {
+                // keep serving the old value until it expires
+            }
+            synchronized (entries) {
+                CachedRate<V> current = entries.get(key);
+                if (current != null) {
+                    current.refreshing = false;
+                }
+            }
+        });
+    }
+
+    // caller holds the entries lock
+    private long generation(int customerId) {
+        Long customer = customerGenerations.get(customerId);
+        return customer == null ? allGeneration : Math.max(allGeneration, customer);
+    }
+
+    private void put(Key key, V value, long generation) {
+        synchronized (entries) {
+            if (generation(key.customerId) == generation) {
+                entries.put(key, new CachedRate<V>(value, System.currentTimeMillis()));
+            }
+        }
+    }
+
+    public void invalidateCustomer(int customerId) {
+        synchronized (entries) {
+            customerGenerations.put(customerId, ++lastGeneration);
+            Iterator<Key> keys = entries.keySet().iterator();
+            while (keys.hasNext()) {
+                if (keys.next().customerId == customerId) {
+                    keys.remove();
+                }
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            allGeneration = ++lastGeneration;
+            // older customer generations are now below allGeneration and no longer needed
+            customerGenerations.clear();
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public String stats() {
+        return "hits=" + hits.get() + " staleHits=" + staleHits.get() + " misses=" + misses.get()
+                + " evictions=" + evictions.get() + " size=" + size();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        ExecutorService refresher = Executors.newSingleThreadExecutor();
+        final AtomicLong remoteCalls = new AtomicLong();
+        RateLoader<String> remote = (customerId, rateId, timestamp) -> {
+            remoteCalls.incrementAndGet();
+            return "rate " + rateId + " of customer " + customerId;
+        };
+        RateDetailsCache<String> cache = new RateDetailsCache<>(remote, refresher, 2, 60000, 50, 10000);
+
+        long now = System.currentTimeMillis();
+        now -= now % 60000;
+        for (int i = 0; i < 1000; i++) {
+            cache.getRateDetails(2, 7, now + i);
+        }
+        System.out.println("remote calls after 1000 lookups: " + remoteCalls.get());
+
+        Thread.sleep(60);
+        System.out.println("stale read: " + cache.getRateDetails(2, 7, now));
+        cache.getRateDetails(3, 7, now);
+        cache.getRateDetails(4, 7, now);
+        cache.invalidateCustomer(4);
+        Thread.sleep(20);
+        System.out.println(cache.stats() + " remoteCalls=" + remoteCalls.get());
+
+        // an invalidation while a load is in flight keeps the loaded value out of the cache
+        RateDetailsCache<String> slow = new RateDetailsCache<>((customerId, rateId, timestamp) -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "old rate";
+        }, refresher, 10, 60000, 50, 10000);
+        final long at = now;
+        Thread load = new Thread(() -> slow.getRateDetails(5, 7, at));
+        load.start();
+        Thread.sleep(10);
+        slow.invalidateCustomer(5);
+        load.join();
+        System.out.println("entries after a load raced an invalidation: " + slow.size());
+        refresher.shutdown();
+    }
+}
@@ -0,0 +1,475 @@
+package permit.perf;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.IntConsumer;
+
+// A compressed set of non-negative int ids, laid out the way Roaring bitmaps are: ids are
+// grouped by their upper 16 bits, and each group keeps its lower 16 bits either as a sorted
+// char array (up to 4096 values, 2 bytes each) or as a 65536 bit bitmap (8 KB), whichever is
+// smaller. Union and intersection work a group at a time, word by word where both sides are
+// bitmaps. Not thread safe; SpaceOccupancy guards each instance.
+public final class SpaceBitmap {
+
+    static final int ARRAY_LIMIT = 4096;
+
+    abstract static class Container {
+        abstract Container add(char low);
+
+        abstract Container remove(char low);
+
+        abstract boolean contains(char low);
+
+        abstract int cardinality();
+
+        abstract Container or(Container other);
+
+        abstract Container and(Container other);
+
+        abstract void forEach(int high, IntConsumer action);
+
+        abstract Container copy();
+    }
+
+    static final class ArrayContainer extends Container {
+        char[] values;
+        int cardinality;
+
+        ArrayContainer(int capacity) {
+            values = new char[capacity];
+        }
+
+        ArrayContainer(char[] values, int cardinality) {
+            this.values = values;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        Container add(char low) {
+            int at = Arrays.binarySearch(values, 0, cardinality, low);
+            if (at >= 0) {
+                return this;
+            }
+            if (cardinality == ARRAY_LIMIT) {
+                return toBitmap().add(low);
+            }
+            at = -at - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_LIMIT, Math.max(4, cardinality * 2)));
+            }
+            System.arraycopy(values, at, values, at + 1, cardinality - at);
+            values[at] = low;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        Container remove(char low) {
+            int at = Arrays.binarySearch(values, 0, cardinality, low);
+            if (at >= 0) {
+                System.arraycopy(values, at + 1, values, at, cardinality - at - 1);
+                cardinality--;
+            }
+            return this;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return Arrays.binarySearch(values, 0, cardinality, low) >= 0;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        Container or(Container other) {
+            if (other instanceof BitmapContainer) {
+                return other.or(this);
+            }
+            ArrayContainer that = (ArrayContainer) other;
+            if (cardinality + that.cardinality > ARRAY_LIMIT) {
+                return toBitmap().or(that);
+            }
+            char[] merged = new char[cardinality + that.cardinality];
+            int i = 0;
+            int j = 0;
+            int n = 0;
+            while (i < cardinality && j < that.cardinality) {
+                char a = values[i];
+                char b = that.values[j];
+                merged[n++] = a <= b ? a : b;
+                if (a <= b) {
+                    i++;
+                }
+                if (b <= a) {
+                    j++;
+                }
+            }
+            while (i < cardinality) {
+                merged[n++] = values[i++];
+            }
+            while (j < that.cardinality) {
+                merged[n++] = that.values[j++];
+            }
+            return new ArrayContainer(merged, n);
+        }
+
+        @Override
+        Container and(Container other) {
+            char[] common = new char[Math.min(cardinality, other.cardinality())];
+            int n = 0;
+            if (other instanceof BitmapContainer) {
+                for (int i = 0; i < cardinality; i++) {
+                    if (other.contains(values[i])) {
+                        common[n++] = values[i];
+                    }
+                }
+            } else {
+                ArrayContainer that = (ArrayContainer) other;
+                int i = 0;
+                int j = 0;
+                while (i < cardinality && j < that.cardinality) {
+                    char a = values[i];
+                    char b = that.values[j];
+                    if (a == b) {
+                        common[n++] = a;
+                    }
+                    if (a <= b) {
+                        i++;
+                    }
+                    if (b <= a) {
+                        j++;
+                    }
+                }
+            }
+            return new ArrayContainer(common, n);
+        }
+
+        @Override
+        void forEach(int high, IntConsumer action) {
+            for (int i = 0; i < cardinality; i++) {
+                action.accept(high | values[i]);
+            }
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, cardinality), cardinality);
+        }
+
+        BitmapContainer toBitmap() {
+            BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < cardinality; i++) {
+                bitmap.words[values[i] >>> 6] |= 1L << values[i];
+            }
+            bitmap.cardinality = cardinality;
+            return bitmap;
+        }
+    }
+
+    static final class BitmapContainer extends Container {
+        final long[] words = new long[1024];
+        int cardinality;
+
+        @Override
+        Container add(char low) {
+            long before = words[low >>> 6];
+            long after = before | 1L << low;
+            if (before != after) {
+                words[low >>> 6] = after;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        Container remove(char low) {
+            long before = words[low >>> 6];
+            long after = before & ~(1L << low);
+            if (before != after) {
+                words[low >>> 6] = after;
+                cardinality--;
+            }
+            return cardinality <= ARRAY_LIMIT ? toArray() : this;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return (words[low >>> 6] & 1L << low) != 0;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        Container or(Container other) {
+            BitmapContainer union = new BitmapContainer();
+            System.arraycopy(words, 0, union.words, 0, words.length);
+            if (other instanceof BitmapContainer) {
+                long[] those = ((BitmapContainer) other).words;
+                for (int i = 0; i < union.words.length; i++) {
+                    union.words[i] |= those[i];
+                }
+            } else {
+                ArrayContainer that = (ArrayContainer) other;
+                for (int i = 0; i < that.cardinality; i++) {
+                    union.words[that.values[i] >>> 6] |= 1L << that.values[i];
+                }
+            }
+            union.recount();
+            return union;
+        }
+
+        @Override
+        Container and(Container other) {
+            if (other instanceof ArrayContainer) {
+                return other.and(this);
+            }
+            BitmapContainer common = new BitmapContainer();
+            long[] those = ((BitmapContainer) other).words;
+            for (int i = 0; i < words.length; i++) {
+                common.words[i] = words[i] & those[i];
+            }
+            common.recount();
+            return common.cardinality <= ARRAY_LIMIT ? common.toArray() : common;
+        }
+
+        @Override
+        void forEach(int high, IntConsumer action) {
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    action.accept(high | i << 6 | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        @Override
+        Container copy() {
+            BitmapContainer copy = new BitmapContainer();
+            System.arraycopy(words, 0, copy.words, 0, words.length);
+            copy.cardinality = cardinality;
+            return copy;
+        }
+
+        void recount() {
+            int count = 0;
+            for (long word : words) {
+                count += Long.bitCount(word);
+            }
+            cardinality = count;
+        }
+
+        ArrayContainer toArray() {
+            ArrayContainer array = new ArrayContainer(cardinality);
+            forEach(0, low -> array.values[array.cardinality++] = (char) low);
+            return array;
+        }
+    }
+
+    // upper 16 bits of each group, sorted, and the group's container at the same index
+    private char[] keys = new char[4];
+    private Container[] containers = new Container[4];
+    private int groups;
+
+    public boolean add(int id) {
+        checkId(id);
+        char high = (char) (id >>> 16);
+        int at = Arrays.binarySearch(keys, 0, groups, high);
+        if (at < 0) {
+            at = -at - 1;
+            insertGroup(at, high, new ArrayContainer(4));
+        }
+        int before = containers[at].cardinality();
+        containers[at] = containers[at].add((char) id);
+        return containers[at].cardinality() != before;
+    }
+
+    public boolean remove(int id) {
+        checkId(id);
+        int at = Arrays.binarySearch(keys, 0, groups, (char) (id >>> 16));
+        if (at < 0) {
+            return false;
+        }
+        int before = containers[at].cardinality();
+        containers[at] = containers[at].remove((char) id);
+        boolean removed = containers[at].cardinality() != before;
+        if (containers[at].cardinality() == 0) {
+            System.arraycopy(keys, at + 1, keys, at, groups - at - 1);
+            System.arraycopy(containers, at + 1, containers, at, groups - at - 1);
+            containers[--groups] = null;
+        }
+        return removed;
+    }
+
+    public boolean contains(int id) {
+        if (id < 0) {
+            return false;
+        }
+        int at = Arrays.binarySearch(keys, 0, groups, (char) (id >>> 16));
+        return at >= 0 && containers[at].contains((char) id);
+    }
+
+    public int cardinality() {
+        int count = 0;
+        for (int i = 0; i < groups; i++) {
+            count += containers[i].cardinality();
+        }
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return groups == 0;
+    }
+
+    // a new bitmap with the ids in either
+    public SpaceBitmap or(SpaceBitmap other) {
+        SpaceBitmap union = new SpaceBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < groups || j < other.groups) {
+            if (j == other.groups || (i < groups && keys[i] < other.keys[j])) {
+                union.appendGroup(keys[i], containers[i++].copy());
+            } else if (i == groups || other.keys[j] < keys[i]) {
+                union.appendGroup(other.keys[j], other.containers[j++].copy());
+            } else {
+                union.appendGroup(keys[i], containers[i++].or(other.containers[j++]));
+            }
+        }
+        return union;
+    }
+
+    // a new bitmap with the ids in both
+    public SpaceBitmap and(SpaceBitmap other) {
+        SpaceBitmap common = new SpaceBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < groups && j < other.groups) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (other.keys[j] < keys[i]) {
+                j++;
+            } else {
+                Container both = containers[i++].and(other.containers[j++]);
+                if (both.cardinality() > 0) {
+                    common.appendGroup(keys[i - 1], both);
+                }
+            }
+        }
+        return common;
+    }
+
+    public SpaceBitmap copy() {
+        SpaceBitmap copy = new SpaceBitmap();
+        for (int i = 0; i < groups; i++) {
+            copy.appendGroup(keys[i], containers[i].copy());
+        }
+        return copy;
+    }
+
+    // ids in ascending order
+    public void forEach(IntConsumer action) {
+        for (int i = 0; i < groups; i++) {
+            containers[i].forEach(keys[i] << 16, action);
+        }
+    }
+
+    // ids from to to, both included, in ascending order; groups outside the range are skipped
+    public void forEachInRange(int from, int to, IntConsumer action) {
+        for (int i = 0; i < groups; i++) {
+            int high = keys[i] << 16;
+            if (high + 0xFFFF < from) {
+                continue;
+            }
+            if (high > to) {
+                return;
+            }
+            containers[i].forEach(high, id -> {
+                if (id >= from && id <= to) {
+                    action.accept(id);
+                }
+            });
+        }
+    }
+
+    public int[] toArray() {
+        final int[] ids = new int[cardinality()];
+        final int[] next = new int[1];
+        forEach(id -> ids[next[0]++] = id);
+        return ids;
+    }
+
+    private void appendGroup(char high, Container container) {
+        insertGroup(groups, high, container);
+    }
+
+    private void insertGroup(int at, char high, Container container) {
+        if (groups == keys.length) {
+            keys = Arrays.copyOf(keys, groups * 2);
+            containers = Arrays.copyOf(containers, groups * 2);
+        }
+        System.arraycopy(keys, at, keys, at + 1, groups - at);
+        System.arraycopy(containers, at, containers, at + 1, groups - at);
+        keys[at] = high;
+        containers[at] = container;
+        groups++;
+    }
+
+    private static void checkId(int id) {
+        if (id < 0) {
+            throw new IllegalArgumentException("negative id " + id);
+        }
+    }
+
+    public static void main(String[] args) {
+        // compare against java.util.BitSet on random sets, dense and sparse
+        Random random = new Random(7);
+        for (int round = 0; round < 200; round++) {
+            int range = round % 2 == 0 ? 200000 : 20000000;
+            int count = random.nextInt(round % 4 < 2 ? 100 : 50000);
+            SpaceBitmap a = new SpaceBitmap();
+            SpaceBitmap b = new SpaceBitmap();
+            java.util.BitSet expectedA = new java.util.BitSet();
+            java.util.BitSet expectedB = new java.util.BitSet();
+            for (int i = 0; i < count; i++) {
+                int x = random.nextInt(range);
+                int y = random.nextInt(range);
+                a.add(x);
+                expectedA.set(x);
+                b.add(y);
+                expectedB.set(y);
+                if (i % 3 == 0) {
+                    int z = random.nextInt(range);
+                    a.remove(z);
+                    expectedA.clear(z);
+                }
+            }
+            java.util.BitSet expectedOr = (java.util.BitSet) expectedA.clone();
+            expectedOr.or(expectedB);
+            java.util.BitSet expectedAnd = (java.util.BitSet) expectedA.clone();
+            expectedAnd.and(expectedB);
+            if (!Arrays.equals(a.toArray(), expectedA.stream().toArray())
+                    || !Arrays.equals(a.or(b).toArray(), expectedOr.stream().toArray())
+                    || !Arrays.equals(a.and(b).toArray(), expectedAnd.stream().toArray())) {
+                throw new AssertionError("round " + round + " differs from BitSet");
+            }
+        }
+        System.out.println("200 random rounds equal to java.util.BitSet");
+
+        SpaceBitmap dense = new SpaceBitmap();
+        SpaceBitmap sparse = new SpaceBitmap();
+        for (int i = 1; i <= 60000; i++) {
+            dense.add(i);
+            if (i % 100 == 0) {
+                sparse.add(i * 10);
+            }
+        }
+        System.out.println("dense " + dense.cardinality() + ", sparse " + sparse.cardinality() + ", union "
+                + dense.or(sparse).cardinality() + ", intersection " + dense.and(sparse).cardinality());
+    }
+}
@@ -0,0 +1,290 @@
+package permit.perf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+// Which spaces in a location have an active permit right now, for the occupancy dashboards.
+// Each location keeps a SpaceBitmap of covered space ids, changed as permits activate and
+// expire instead of being worked out from the permit table per query. Two permits can cover
+// the same space, so a count per space decides when its bit is cleared. The space each
+// active permit covers is kept by uuid, so a repeated event changes nothing and an expiry
+// clears the space the permit was counted on even if the record has moved since.
+//
+//   GET /api/v1/occupancy?locations=11,12             covered spaces in any of the locations
+//   GET /api/v1/occupancy?locations=11&spaces=1-200   covered spaces among 1 to 200
+//
+// Requests need the same bearer token as the other /api/v1 endpoints and only see locations
+// of the customers the token is for.
+public class SpaceOccupancy {
+
+    // checks the Authorization header the way the security filter of the other endpoints does
+    public interface Authenticator {
+        // the customers the caller may read, null when the header is missing or not valid
+        Set<Integer> customers(String authorization);
+    }
+
+    static final class Location {
+        final int customerId;
+        final SpaceBitmap covered = new SpaceBitmap();
+        // permits per space, only spaces with more than one are kept
+        final Map<Integer, Integer> shared = new HashMap<>();
+        // the space each active permit is counted on
+        final Map<UUID, Integer> spaceOf = new HashMap<>();
+
+        Location(int customerId) {
+            this.customerId = customerId;
+        }
+
+        void cover(int space) {
+            if (!covered.add(space)) {
+                shared.merge(space, 2, (count, two) -> count + 1);
+            }
+        }
+
+        void uncover(int space) {
+            Integer count = shared.get(space);
+            if (count == null) {
+                covered.remove(space);
+            } else if (count == 2) {
+                shared.remove(space);
+            } else {
+                shared.put(space, count - 1);
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<Integer, Location> locations = new ConcurrentHashMap<>();
+
+    public void onActivated(PermitRecord permit) {
+        Location location = locations.computeIfAbsent(permit.getLocationId(), id -> new Location(permit.getCustomerId()));
+        int space = permit.getSpaceId();
+        synchronized (location) {
+            Integer previous = location.spaceOf.put(permit.getTransactionUuid(), space);
+            if (previous == null || previous != space) {
+                if (previous != null) {
+                    location.uncover(previous);
+                }
+                location.cover(space);
+            }
+        }
+    }
+
+    public void onExpired(PermitRecord permit) {
+        Location location = locations.get(permit.getLocationId());
+        if (location == null) {
+            return;
+        }
+        synchronized (location) {
+            Integer space = location.spaceOf.remove(permit.getTransactionUuid());
+            if (space != null) {
+                location.uncover(space);
+            }
+        }
+    }
+
+    // a copy, safe to combine and read without holding anything
+    public SpaceBitmap covered(int locationId) {
+        Location location = locations.get(locationId);
+        if (location == null) {
+            return new SpaceBitmap();
+        }
+        synchronized (location) {
+            return location.covered.copy();
+        }
+    }
+
+    public SpaceBitmap coveredInAny(int... locationIds) {
+        SpaceBitmap union = new SpaceBitmap();
+        for (int locationId : locationIds) {
+            union = union.or(covered(locationId));
+        }
+        return union;
+    }
+
+    public int coveredCount(int locationId) {
+        Location location = locations.get(locationId);
+        if (location == null) {
+            return 0;
+        }
+        synchronized (location) {
+            return location.covered.cardinality();
+        }
+    }
+
+    // replaces everything with the permits active at nowMillis, for startup before events flow
+    public void rebuild(Iterable<PermitRecord> permits, long nowMillis) {
+        locations.clear();
+        for (PermitRecord permit : permits) {
+            if (permit.getActiveDate().toEpochMilli() <= nowMillis && nowMillis < permit.getExpiryDate().toEpochMilli()) {
+                onActivated(permit);
+            }
+        }
+    }
+
+    // a location the customers cannot see answers as if nothing were covered there
+    String query(URI uri, Set<Integer> customers) {
+        Map<String, String> parameters = new HashMap<>();
+        if (uri.getRawQuery() != null) {
+            for (String pair : uri.getRawQuery().split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0) {
+                    parameters.put(pair.substring(0, equals), pair.substring(equals + 1));
+                }
+            }
+        }
+        String[] ids = parameters.getOrDefault("locations", "").split(",");
+        int[] locationIds = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            locationIds[i] = Integer.parseInt(ids[i].trim());
+            Location location = locations.get(locationIds[i]);
+            if (location != null && !customers.contains(location.customerId)) {
+                throw new SecurityException("location " + locationIds[i] + " is not visible to the caller");
+            }
+        }
+        SpaceBitmap result = coveredInAny(locationIds);
+        final StringBuilder listed = new StringBuilder();
+        final int[] count = new int[1];
+        IntConsumer append = space -> {
+            listed.append(space).append(',');
+            count[0]++;
+        };
+        String spaces = parameters.get("spaces");
+        if (spaces == null) {
+            result.forEach(append);
+        } else {
+            // filtered while walking the result, so a wide range costs no more than a narrow one
+            String[] range = spaces.split("-");
+            int from = Integer.parseInt(range[0]);
+            int to = Integer.parseInt(range[range.length - 1]);
+            if (from < 0) {
+                throw new IllegalArgumentException("spaces must be a range from-to of space ids");
+            }
+            result.forEachInRange(from, to, append);
+        }
+        if (listed.length() > 0) {
+            listed.setLength(listed.length() - 1);
+        }
+        return "{\"covered\":" + count[0] + ",\"spaces\":[" + listed + "]}";
+    }
+
+    public HttpServer serve(int port, Authenticator authenticator) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 64);
+        server.createContext("/api/v1/occupancy", exchange -> handle(exchange, authenticator));
+        server.start();
+        return server;
+    }
+
+    private void handle(HttpExchange exchange, Authenticator authenticator) throws IOException {
+        int status = 200;
+        String body;
+        try {
+            Set<Integer> customers = authenticator.customers(exchange.getRequestHeaders().getFirst("Authorization"));
+            if (customers == null) {
+                status = 401;
+                body = "{\"error\":\"authentication required\"}";
+            } else {
+                body = query(exchange.getRequestURI(), customers);
+            }
+        } catch (SecurityException e) {
+            status = 403;
+            body = "{\"error\":\"location not visible to the caller\"}";
+        } catch (IllegalArgumentException e) {
+            // NumberFormatException included
+            status = 400;
+            body = "{\"error\":\"locations must be numbers and spaces a range from-to of space ids\"}";
+        } catch (RuntimeException e) {
+            // an exchange that is never answered holds the connection until the client gives up
+            status = 500;
+            body = "{\"error\":\"occupancy could not be read\"}";
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Instant now = Instant.now();
+        List<PermitRecord> permits = new ArrayList<>();
+        for (int i = 0; i < 200000; i++) {
+            // location 11 is almost full, location 12 has a few spaces taken
+            int location = i % 10 == 0 ? 12 : 11;
+            int space = location == 11 ? i % 50000 + 1 : i % 3000 * 7 + 1;
+            permits.add(new PermitRecord(UUID.randomUUID(), 2, "P" + i, location, space, now.minusSeconds(60),
+                    now.plusSeconds(3600)));
+        }
+        SpaceOccupancy occupancy = new SpaceOccupancy();
+        long start = System.nanoTime();
+        occupancy.rebuild(permits, now.toEpochMilli());
+        System.out.println("rebuilt from " + permits.size() + " permits in " + (System.nanoTime() - start) / 1000000
+                + " ms: location 11 " + occupancy.coveredCount(11) + " spaces, location 12 " + occupancy.coveredCount(12));
+
+        start = System.nanoTime();
+        int rounds = 1000;
+        int sink = 0;
+        for (int i = 0; i < rounds; i++) {
+            sink += occupancy.coveredInAny(11, 12).cardinality() + occupancy.covered(11).and(occupancy.covered(12)).cardinality();
+        }
+        System.out.println("union and intersection " + (System.nanoTime() - start) / rounds / 1000 + " us per query (" + sink / rounds + ")");
+
+        occupancy.onExpired(permits.get(10));
+        occupancy.onExpired(permits.get(10));
+        occupancy.onActivated(permits.get(20));
+        System.out.println("after one expiry at location 12, delivered twice, and a repeated activation: "
+                + occupancy.coveredCount(12) + " spaces, space 71 still covered: " + occupancy.covered(12).contains(71));
+        // stands in for the token check of the security filter: "Bearer customer-<id>"; the
+        // token service behind it is down for "Bearer expired"
+        Authenticator authenticator = authorization -> {
+            if ("Bearer expired".equals(authorization)) {
+                throw new IllegalStateException("token service unavailable");
+            }
+            return authorization != null && authorization.startsWith("Bearer customer-")
+                    ? Collections.singleton(Integer.valueOf(authorization.substring("Bearer customer-".length())))
+                    : null;
+        };
+        HttpServer server = occupancy.serve(0, authenticator);
+        try {
+            String base = "http://127.0.0.1:" + server.getAddress().getPort() + "/api/v1/occupancy?";
+            String[][] requests = { { "Bearer customer-2", "locations=12&spaces=1-100" },
+                    { "Bearer customer-3", "locations=12&spaces=1-100" }, { null, "locations=12&spaces=1-100" },
+                    { "Bearer customer-2", "locations=12&spaces=20000-2147483647" },
+                    { "Bearer customer-2", "locations=12&spaces=x" }, { "Bearer expired", "locations=12" } };
+            for (String[] request : requests) {
+                URI uri = URI.create(base + request[1]);
+                HttpURLConnection connection = (HttpURLConnection) uri.toURL().openConnection();
+                if (request[0] != null) {
+                    connection.setRequestProperty("Authorization", request[0]);
+                }
+                int status = connection.getResponseCode();
+                try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                    byte[] buffer = new byte[4096];
+                    int read = in.read(buffer);
+                    System.out.println(request[0] + ": " + request[1] + " -> " + status + " "
+                            + new String(buffer, 0, read, StandardCharsets.UTF_8));
+                }
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+}
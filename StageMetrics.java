@@ -0,0 +1,119 @@
+package permit.perf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.sun.net.httpserver.HttpServer;
+
+// Latency per step of the permit creation pipeline, split by outcome: "SUCCESS" or the error
+// constant the step failed with. Recording looks up an existing histogram and bumps one
+// counter, so nothing is allocated once a (stage, outcome) pair has been seen. A listener can
+// be registered to turn the same timings into trace spans.
+public final class StageMetrics {
+
+    public enum Stage {
+        VALIDATION, TRANSACTION_TYPE_LOOKUP, RATE_LOOKUP, TOPOLOGY_VALIDATION, REPOSITORY_SAVE, CPS_RECORD,
+        RESPONSE_SERIALIZATION
+    }
+
+    public static final String SUCCESS = "SUCCESS";
+    // outcomes beyond this many per stage are folded into OTHER so the map stays bounded
+    private static final int MAX_OUTCOMES_PER_STAGE = 64;
+    private static final String OTHER = "OTHER";
+
+    public interface SpanListener {
+        void onStage(Stage stage, String outcome, long startNanos, long durationNanos);
+    }
+
+    private static final Map<Stage, ConcurrentHashMap<String, LatencyHistogram>> HISTOGRAMS = new EnumMap<>(Stage.class);
+    private static volatile SpanListener spanListener;
+
+    static {
+        for (Stage stage : Stage.values()) {
+            HISTOGRAMS.put(stage, new ConcurrentHashMap<>());
+        }
+    }
+
+    private StageMetrics() {
+    }
+
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    // outcome should be a constant (SUCCESS or a Beans error), not a built message
+    public static void record(Stage stage, String outcome, long startNanos) {
+        long duration = System.nanoTime() - startNanos;
+        ConcurrentHashMap<String, LatencyHistogram> byOutcome = HISTOGRAMS.get(stage);
+        LatencyHistogram histogram = byOutcome.get(outcome);
+        if (histogram == null) {
+            String key = byOutcome.size() < MAX_OUTCOMES_PER_STAGE ? outcome : OTHER;
+            histogram = byOutcome.computeIfAbsent(key, k -> new LatencyHistogram());
+        }
+        histogram.recordNanos(duration);
+        SpanListener listener = spanListener;
+        if (listener != null) {
+            listener.onStage(stage, outcome, startNanos, duration);
+        }
+    }
+
+    public static void setSpanListener(SpanListener listener) {
+        spanListener = listener;
+    }
+
+    public static LatencyHistogram histogram(Stage stage, String outcome) {
+        return HISTOGRAMS.get(stage).get(outcome);
+    }
+
+    // one line per stage and outcome, for the metrics endpoint
+    public static String render() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<Stage, ConcurrentHashMap<String, LatencyHistogram>> stage : HISTOGRAMS.entrySet()) {
+            for (Map.Entry<String, LatencyHistogram> outcome : new TreeMap<>(stage.getValue()).entrySet()) {
+                out.append(stage.getKey()).append(' ').append(outcome.getKey()).append(' ')
+                        .append(outcome.getValue().summary()).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    public static HttpServer serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 16);
+        server.createContext("/metrics/permit-stages", exchange -> {
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    public static void main(String[] args) throws Exception {
+        setSpanListener((stage, outcome, start, duration) -> {
+            if (duration > 20000000) {
+                System.out.println("slow span " + stage + " " + outcome + " " + duration / 1000000 + " ms");
+            }
+        });
+        for (int i = 0; i < 200; i++) {
+            long start = start();
+            boolean invalid = i % 10 == 0;
+            record(Stage.VALIDATION, invalid ? "Invalid plate number" : SUCCESS, start);
+            if (invalid) {
+                continue;
+            }
+            start = start();
+            Thread.sleep(i == 101 ? 25 : 1);
+            record(Stage.RATE_LOOKUP, SUCCESS, start);
+        }
+        System.out.print(render());
+    }
+}
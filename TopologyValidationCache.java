@@ -0,0 +1,179 @@
+package permit.perf;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+// Caches validateCustomerRelationship answers. Valid and invalid answers get their own
+// TTL, concurrent lookups of the same key wait on one in-flight call, at most
+// maxConcurrentLoads remote calls run at once and the map never holds more than maxEntries,
+// in-flight lookups included: past that the least recently read entry is dropped, which
+// only means a lookup still in flight is not kept once it answers. Failed calls (timeouts,
+// open circuit) are not cached.
+public class TopologyValidationCache<K, V> {
+
+    static final class CachedResult<V> {
+        final CompletableFuture<V> future = new CompletableFuture<>();
+        volatile long expiresAt = Long.MAX_VALUE;
+    }
+
+    public static class RejectedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public RejectedException(String message) {
+            super(message);
+        }
+    }
+
+    // access ordered, guarded by itself
+    private final LinkedHashMap<K, CachedResult<V>> results;
+    private final Function<K, V> loader;
+    private final Predicate<V> isValid;
+    private final long validTtlMillis;
+    private final long invalidTtlMillis;
+    private final Semaphore loads;
+    private final long loadWaitMillis;
+
+    public TopologyValidationCache(Function<K, V> loader, Predicate<V> isValid, long validTtlMillis,
+            long invalidTtlMillis, int maxEntries, int maxConcurrentLoads, long loadWaitMillis) {
+        this.loader = loader;
+        this.isValid = isValid;
+        this.validTtlMillis = validTtlMillis;
+        this.invalidTtlMillis = invalidTtlMillis;
+        this.results = new LinkedHashMap<K, CachedResult<V>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CachedResult<V>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.loads = new Semaphore(maxConcurrentLoads);
+        this.loadWaitMillis = loadWaitMillis;
+    }
+
+    public V get(K key) {
+        CachedResult<V> current;
+        CachedResult<V> mine = null;
+        synchronized (results) {
+            current = results.get(key);
+            if (current == null || (current.future.isDone() && current.expiresAt <= System.currentTimeMillis())) {
+                mine = new CachedResult<>();
+                results.put(key, mine);
+            }
+        }
+        if (mine == null) {
+            return await(current);
+        }
+        load(key, mine);
+        return await(mine);
+    }
+
+    private void load(K key, CachedResult<V> mine) {
+        try {
+            if (!loads.tryAcquire(loadWaitMillis, TimeUnit.MILLISECONDS)) {
+                fail(key, mine, new RejectedException("too many topology lookups in flight"));
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(key, mine, e);
+            return;
+        }
+        try {
+            V value = loader.apply(key);
+            mine.expiresAt = System.currentTimeMillis() + (isValid.test(value) ? validTtlMillis : invalidTtlMillis);
+            mine.future.complete(value);
+        } catch (Throwable e) {
+            // an Error too: the future must complete or every waiter on this key blocks for good
+            fail(key, mine, e);
+        } finally {
+            loads.release();
+        }
+    }
+
+    private void fail(K key, CachedResult<V> mine, Throwable error) {
+        synchronized (results) {
+            results.remove(key, mine);
+        }
+        mine.future.completeExceptionally(error);
+    }
+
+    private V await(CachedResult<V> result) {
+        try {
+            return result.future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    public void invalidate(K key) {
+        synchronized (results) {
+            results.remove(key);
+        }
+    }
+
+    public int size() {
+        synchronized (results) {
+            return results.size();
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        final AtomicInteger remoteCalls = new AtomicInteger();
+        Function<String, Boolean> topology = key -> {
+            remoteCalls.incrementAndGet();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return !key.endsWith(":0");
+        };
+        final TopologyValidationCache<String, Boolean> cache =
+                new TopologyValidationCache<>(topology, valid -> valid, 60000, 5000, 1000, 8, 500);
+
+        final CountDownLatch done = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            new Thread(() -> {
+                cache.get("2:11");
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        System.out.println("20 concurrent lookups, remote calls: " + remoteCalls.get());
+        System.out.println("2:0 valid " + cache.get("2:0") + ", again " + cache.get("2:0")
+                + ", remote calls: " + remoteCalls.get());
+
+        TopologyValidationCache<String, Boolean> bounded = new TopologyValidationCache<>(key -> true, valid -> valid,
+                60000, 5000, 1000, 8, 500);
+        for (int i = 0; i < 5000; i++) {
+            bounded.get("3:" + i);
+        }
+        System.out.println("after 5000 distinct lookups: " + bounded.size() + " entries");
+
+        TopologyValidationCache<String, Boolean> broken = new TopologyValidationCache<>(key -> {
+            throw new StackOverflowError();
+        }, valid -> valid, 60000, 5000, 1000, 8, 500);
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+                broken.get("2:11");
+            } catch (StackOverflowError e) {
+                System.out.println("loader error surfaced, " + broken.size() + " entries left");
+            }
+        }
+    }
+}
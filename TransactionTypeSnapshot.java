@@ -0,0 +1,136 @@
+package permit.perf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+// Keeps every transaction type in memory. A refresh builds a new immutable snapshot
+// and swaps it in with one volatile write, so readers never lock and never see a
+// half built table.
+public class TransactionTypeSnapshot {
+
+    public static class TransactionType {
+        private final int id;
+        private final String name;
+
+        public TransactionType(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return id + ":" + name;
+        }
+    }
+
+    static final class Snapshot {
+        // byId[id] is the type with that id while ids are small and dense, otherwise byId is
+        // empty and sparse holds them
+        final TransactionType[] byId;
+        final Map<Integer, TransactionType> sparse;
+        final List<TransactionType> ordered;
+
+        Snapshot(Collection<TransactionType> types) {
+            List<TransactionType> sorted = new ArrayList<>(types);
+            sorted.sort(Comparator.comparingInt(TransactionType::getId));
+            if (!sorted.isEmpty() && sorted.get(0).getId() < 0) {
+                throw new IllegalArgumentException("negative transaction type id " + sorted.get(0).getId());
+            }
+            int maxId = sorted.isEmpty() ? -1 : sorted.get(sorted.size() - 1).getId();
+            if (maxId < Math.max(MIN_DENSE_IDS, DENSITY * sorted.size())) {
+                this.byId = new TransactionType[maxId + 1];
+                this.sparse = Collections.emptyMap();
+                for (TransactionType type : sorted) {
+                    byId[type.getId()] = type;
+                }
+            } else {
+                this.byId = new TransactionType[0];
+                this.sparse = new HashMap<>();
+                for (TransactionType type : sorted) {
+                    sparse.put(type.getId(), type);
+                }
+            }
+            this.ordered = Collections.unmodifiableList(sorted);
+        }
+    }
+
+    // an array is used while the largest id is below this many slots per type (or below
+    // MIN_DENSE_IDS), so a stray large id falls back to a map instead of a huge array
+    static final int DENSITY = 4;
+    static final int MIN_DENSE_IDS = 256;
+
+    private final Supplier<Collection<TransactionType>> repository;
+    private volatile Snapshot snapshot;
+
+    public TransactionTypeSnapshot(Supplier<Collection<TransactionType>> repository) {
+        this.repository = repository;
+        refresh();
+    }
+
+    // a table with a negative id is rejected and the previous snapshot stays in place
+    public void refresh() {
+        snapshot = new Snapshot(repository.get());
+    }
+
+    // same contract as findOne: null when the id is unknown
+    public TransactionType findOne(int id) {
+        Snapshot current = snapshot;
+        TransactionType[] byId = current.byId;
+        if (id >= 0 && id < byId.length) {
+            return byId[id];
+        }
+        return current.sparse.isEmpty() ? null : current.sparse.get(id);
+    }
+
+    public List<TransactionType> findAll(int page, int size) {
+        List<TransactionType> ordered = snapshot.ordered;
+        long from = (long) page * size;
+        if (page < 0 || size <= 0 || from >= ordered.size()) {
+            return Collections.emptyList();
+        }
+        return ordered.subList((int) from, (int) Math.min(from + size, ordered.size()));
+    }
+
+    public int count() {
+        return snapshot.ordered.size();
+    }
+
+    public static void main(String[] args) {
+        final List<TransactionType> table = new ArrayList<>(Arrays.asList(
+                new TransactionType(1, "Purchase"), new TransactionType(2, "Renewal"),
+                new TransactionType(3, "Refund"), new TransactionType(4, "Transfer")));
+        TransactionTypeSnapshot types = new TransactionTypeSnapshot(() -> new ArrayList<>(table));
+
+        System.out.println("findOne(2) " + types.findOne(2) + ", findOne(9) " + types.findOne(9));
+        System.out.println("page 0 " + types.findAll(0, 3) + ", page 1 " + types.findAll(1, 3));
+
+        table.add(new TransactionType(5, "Cancel"));
+        types.refresh();
+        System.out.println("after refresh " + types.count() + " types, findOne(5) " + types.findOne(5));
+
+        table.add(new TransactionType(2000000000, "Imported"));
+        types.refresh();
+        System.out.println("sparse ids: findOne(2000000000) " + types.findOne(2000000000) + ", findOne(3) " + types.findOne(3));
+        table.add(new TransactionType(-1, "Broken"));
+        try {
+            types.refresh();
+        } catch (IllegalArgumentException e) {
+            System.out.println("refresh rejected: " + e.getMessage() + ", still " + types.count() + " types");
+        }
+    }
+}
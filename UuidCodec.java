@@ -0,0 +1,218 @@
+package permit.perf;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+// Binary UUID handling for permit transaction lookups. A UUID is two longs, written as 16
+// big-endian bytes, the same layout a BINARY(16) column stores:
+//
+//   transaction_uuid BINARY(16) NOT NULL,
+//   UNIQUE KEY uk_permit_txn (transaction_uuid, customer_id)
+//
+// None of the methods below go through UUID.toString() or a String.
+public final class UuidCodec {
+
+    public static final int BYTES = 16;
+
+    private UuidCodec() {
+    }
+
+    public static void write(UUID uuid, ByteBuffer out) {
+        out.putLong(uuid.getMostSignificantBits());
+        out.putLong(uuid.getLeastSignificantBits());
+    }
+
+    public static void write(long msb, long lsb, byte[] out, int offset) {
+        for (int i = 7; i >= 0; i--) {
+            out[offset + i] = (byte) msb;
+            out[offset + 8 + i] = (byte) lsb;
+            msb >>>= 8;
+            lsb >>>= 8;
+        }
+    }
+
+    public static UUID read(ByteBuffer in) {
+        return new UUID(in.getLong(), in.getLong());
+    }
+
+    public static long msb(byte[] in, int offset) {
+        return toLong(in, offset);
+    }
+
+    public static long lsb(byte[] in, int offset) {
+        return toLong(in, offset + 8);
+    }
+
+    private static long toLong(byte[] in, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (in[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    // BINARY(16) column value, the one allocation is the array the driver needs
+    public static byte[] toBytes(UUID uuid) {
+        byte[] bytes = new byte[BYTES];
+        write(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), bytes, 0);
+        return bytes;
+    }
+
+    public static UUID fromBytes(byte[] bytes) {
+        return new UUID(msb(bytes, 0), lsb(bytes, 0));
+    }
+
+    // Parses the canonical 36 character form straight into the two halves, e.g. from a path
+    // variable, without the split() that UUID.fromString does. Returns false when malformed.
+    public static boolean parse(CharSequence text, long[] msbLsb) {
+        if (text.length() != 36 || text.charAt(8) != '-' || text.charAt(13) != '-' || text.charAt(18) != '-'
+                || text.charAt(23) != '-') {
+            return false;
+        }
+        long msb = 0;
+        long lsb = 0;
+        int digits = 0;
+        for (int i = 0; i < 36; i++) {
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                continue;
+            }
+            int nibble = hexDigit(text.charAt(i));
+            if (nibble < 0) {
+                return false;
+            }
+            if (digits < 16) {
+                msb = (msb << 4) | nibble;
+            } else {
+                lsb = (lsb << 4) | nibble;
+            }
+            digits++;
+        }
+        msbLsb[0] = msb;
+        msbLsb[1] = lsb;
+        return true;
+    }
+
+    // ASCII only: Character.digit would also take fullwidth and other Unicode digits
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    // Open addressing map keyed on the two halves, for in-memory lookups by uuid that never
+    // build a UUID or String key. Not thread safe; guard writes or publish copies.
+    public static final class Index<V> {
+        private long[] keys = new long[32];
+        private Object[] values = new Object[16];
+        private int size;
+
+        public V get(long msb, long lsb) {
+            int mask = values.length - 1;
+            for (int slot = hash(msb, lsb) & mask; values[slot] != null; slot = (slot + 1) & mask) {
+                if (keys[2 * slot] == msb && keys[2 * slot + 1] == lsb) {
+                    @SuppressWarnings("unchecked")
+                    V value = (V) values[slot];
+                    return value;
+                }
+            }
+            return null;
+        }
+
+        public void put(long msb, long lsb, V value) {
+            if (value == null) {
+                throw new IllegalArgumentException("null values are not supported");
+            }
+            if (2 * (size + 1) > values.length) {
+                grow();
+            }
+            int mask = values.length - 1;
+            int slot = hash(msb, lsb) & mask;
+            while (values[slot] != null) {
+                if (keys[2 * slot] == msb && keys[2 * slot + 1] == lsb) {
+                    values[slot] = value;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[2 * slot] = msb;
+            keys[2 * slot + 1] = lsb;
+            values[slot] = value;
+            size++;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new Object[oldValues.length * 2];
+            size = 0;
+            for (int i = 0; i < oldValues.length; i++) {
+                if (oldValues[i] != null) {
+                    @SuppressWarnings("unchecked")
+                    V value = (V) oldValues[i];
+                    put(oldKeys[2 * i], oldKeys[2 * i + 1], value);
+                }
+            }
+        }
+
+        private static int hash(long msb, long lsb) {
+            long h = msb * 0x9e3779b97f4a7c15L ^ lsb;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    public static void main(String[] args) {
+        UUID uuid = UUID.randomUUID();
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[BYTES]);
+        write(uuid, buffer);
+        buffer.flip();
+        long[] parsed = new long[2];
+        System.out.println(uuid + " round trip " + uuid.equals(read(buffer)) + ", parse "
+                + (parse(uuid.toString(), parsed) && parsed[0] == uuid.getMostSignificantBits()
+                        && parsed[1] == uuid.getLeastSignificantBits())
+                + ", fullwidth digit rejected " + !parse("\uff10" + uuid.toString().substring(1), parsed));
+
+        Index<String> index = new Index<>();
+        UUID[] uuids = new UUID[100000];
+        for (int i = 0; i < uuids.length; i++) {
+            uuids[i] = UUID.randomUUID();
+            index.put(uuids[i].getMostSignificantBits(), uuids[i].getLeastSignificantBits(), "permit-" + i);
+        }
+        System.out.println("index lookup " + index.get(uuids[42].getMostSignificantBits(), uuids[42].getLeastSignificantBits()));
+
+        // rough comparison only, use a JMH harness for numbers worth quoting
+        byte[] bytes = new byte[BYTES];
+        long sink = 0;
+        int rounds = 2000000;
+        for (int warmup = 0; warmup < 2; warmup++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                UUID u = uuids[i % uuids.length];
+                byte[] text = u.toString().getBytes(StandardCharsets.US_ASCII);
+                sink += UUID.fromString(new String(text, StandardCharsets.US_ASCII)).getLeastSignificantBits();
+            }
+            long viaString = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                UUID u = uuids[i % uuids.length];
+                write(u.getMostSignificantBits(), u.getLeastSignificantBits(), bytes, 0);
+                sink += lsb(bytes, 0);
+            }
+            long binary = System.nanoTime() - start;
+            System.out.println("via String " + viaString / rounds + " ns/op, binary " + binary / rounds + " ns/op");
+        }
+        System.out.println(sink);
+    }
+}